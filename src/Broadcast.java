@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -6,16 +7,111 @@ import java.util.*;
  * relevant events in their channels. For instance, many chat services inform
  * you when someone has been removed from a chat that you're in.
  *
- * You do not need to modify this file.
+ * Recipients are addressed either by nickname, through the public factory
+ * methods, or by user ID, through the package-private ones that take a
+ * {@link ServerModelApi}. The model uses user IDs, so that the backend can
+ * dispatch without looking anyone up, and a recipient who changes nickname
+ * still receives their responses. Nicknames for user IDs are looked up once,
+ * as they are added, and are only used to compare or print a broadcast, so
+ * neither changes when the model does afterwards.
  */
 public final class Broadcast {
 
-    private final Map<String, List<String>> responses;
+    /**
+     * The most characters of names or changes sent in one NAMES or NAMESDELTA
+     * response to a client that has enabled the NAMES extension.
+     */
+    static final int NAMES_CHUNK_LENGTH = 4096;
+
+    // Each distinct response is held once, with everyone it goes to. Entries
+    // are in the order their responses were added, so each recipient receives
+    // its responses in that order.
+    private final List<Entry> entries;
+    // The recipients each response has been added for, to drop duplicates. A
+    // null set is worked out from the entries when it is first needed.
+    private final Map<String, Set<String>> recipientsByResponse;
+    private final Map<String, IntHashSet> recipientIdsByResponse;
+    // The model that user IDs belong to, or null if there are none
+    private final ServerModelApi model;
 
     // Hide constructor so Broadcasts can only be created via one of the
     // static factory methods below.
     private Broadcast() {
-        responses = new TreeMap<>();
+        this(null);
+    }
+
+    private Broadcast(ServerModelApi model) {
+        entries = new ArrayList<>();
+        recipientsByResponse = new HashMap<>();
+        recipientIdsByResponse = new HashMap<>();
+        this.model = model;
+    }
+
+    /**
+     * A response, and the users it should be sent to: those addressed by
+     * nickname, and those addressed by user ID, with the nicknames they had
+     * when they were added.
+     */
+    static final class Entry {
+        private static final int[] NO_IDS = new int[0];
+        private static final String[] NO_NICKNAMES = new String[0];
+
+        private final String response;
+        // The response already encoded for sending, or null if it is not
+        private final ByteBuffer encoded;
+        private final List<String> recipients;
+        private int[] recipientIds;
+        // null for a user who was not registered when they were added
+        private String[] recipientNicknames;
+        private int recipientIdCount;
+
+        private Entry(String response, ByteBuffer encoded) {
+            this.response = response;
+            this.encoded = encoded;
+            recipients = new ArrayList<>();
+            recipientIds = NO_IDS;
+            recipientNicknames = NO_NICKNAMES;
+            recipientIdCount = 0;
+        }
+
+        String getResponse() {
+            return response;
+        }
+
+        /**
+         * Gets the response as encoded by {@link ServerBackend#encode}, if that
+         * was done when the response was made, such as a {@link Command}'s.
+         *
+         * @return a read-only buffer holding the encoded response, or null
+         */
+        ByteBuffer getEncoded() {
+            return encoded;
+        }
+
+        List<String> getRecipients() {
+            return Collections.unmodifiableList(recipients);
+        }
+
+        int getRecipientIdCount() {
+            return recipientIdCount;
+        }
+
+        int getRecipientId(int index) {
+            if (index >= recipientIdCount) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return recipientIds[index];
+        }
+
+        private void addRecipientId(int userId, String nickname) {
+            if (recipientIdCount == recipientIds.length) {
+                int capacity = Math.max(4, recipientIdCount * 2);
+                recipientIds = Arrays.copyOf(recipientIds, capacity);
+                recipientNicknames = Arrays.copyOf(recipientNicknames, capacity);
+            }
+            recipientIds[recipientIdCount] = userId;
+            recipientNicknames[recipientIdCount++] = nickname;
+        }
     }
 
     /**
@@ -25,13 +121,126 @@ public final class Broadcast {
      * @param response A string encoding of the response
      */
     private void addResponse(String nick, String response) {
-        if (!responses.containsKey(nick)) {
-            responses.put(nick, new LinkedList<String>());
+        if (!recipientsOf(response).add(nick)) {
+            return;
+        }
+        lastEntryFor(response, null).recipients.add(nick);
+    }
+
+    /**
+     * Enqueue a response to be sent to the given user ID.
+     *
+     * @param userId   The ID of the user to whom the response should be sent
+     * @param response A string encoding of the response
+     * @param encoded  The response already encoded for sending, or null
+     */
+    private void addResponse(int userId, String response, ByteBuffer encoded) {
+        addResponse(userId, model.getNickname(userId), response, encoded);
+    }
+
+    /**
+     * Enqueue a response to be sent to the given user ID, whose nickname has
+     * already been looked up.
+     *
+     * @param userId   The ID of the user to whom the response should be sent
+     * @param nickname The user's nickname, or null if they are not registered
+     * @param response A string encoding of the response
+     * @param encoded  The response already encoded for sending, or null
+     */
+    private void addResponse(int userId, String nickname, String response, ByteBuffer encoded) {
+        if (!recipientIdsOf(response).add(userId)) {
+            return;
+        }
+        lastEntryFor(response, encoded).addRecipientId(userId, nickname);
+    }
+
+    /**
+     * Enqueue a response to be sent to each of the given user IDs, which must be
+     * distinct.
+     *
+     * @param userIds  The IDs of the users to whom the response should be sent
+     * @param response A string encoding of the response
+     * @param encoded  The response already encoded for sending, or null
+     */
+    private void addResponses(int[] userIds, String response, ByteBuffer encoded) {
+        if (userIds.length > 0 && !recipientIdsByResponse.containsKey(response)) {
+            Entry entry = new Entry(response, encoded);
+            entry.recipientIds = userIds;
+            entry.recipientNicknames = new String[userIds.length];
+            for (int i = 0; i < userIds.length; i++) {
+                entry.recipientNicknames[i] = model.getNickname(userIds[i]);
+            }
+            entry.recipientIdCount = userIds.length;
+            entries.add(entry);
+            recipientIdsByResponse.put(response, null);
+            return;
+        }
+        for (int userId : userIds) {
+            addResponse(userId, response, encoded);
+        }
+    }
+
+    // Gets the latest entry if it holds the given response, or else a new one,
+    // so that a recipient's responses stay in the order they were added
+    private Entry lastEntryFor(String response, ByteBuffer encoded) {
+        Entry last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+        if (last == null || !last.response.equals(response)) {
+            last = new Entry(response, encoded);
+            entries.add(last);
         }
-        List<String> userResponses = responses.get(nick);
-        if (!userResponses.contains(response)) {
-            userResponses.add(response);
+        return last;
+    }
+
+    /**
+     * Enqueue a response to be sent to each of the given user nicknames. When
+     * the nicknames are a set and no one has the response yet, they go into a
+     * single entry without checking each one for duplicates.
+     *
+     * @param nicks    The nicknames of the users to whom the response should be
+     *                 sent
+     * @param response A string encoding of the response
+     */
+    private void addResponses(Collection<String> nicks, String response) {
+        if (nicks instanceof Set && !nicks.isEmpty() && !recipientsByResponse.containsKey(response)) {
+            Entry entry = new Entry(response, null);
+            entry.recipients.addAll(nicks);
+            entries.add(entry);
+            recipientsByResponse.put(response, null);
+            return;
+        }
+        for (String nick : nicks) {
+            addResponse(nick, response);
+        }
+    }
+
+    private Set<String> recipientsOf(String response) {
+        Set<String> recipients = recipientsByResponse.get(response);
+        if (recipients == null) {
+            recipients = new HashSet<>();
+            for (Entry entry : entries) {
+                if (entry.response.equals(response)) {
+                    recipients.addAll(entry.recipients);
+                }
+            }
+            recipientsByResponse.put(response, recipients);
+        }
+        return recipients;
+    }
+
+    private IntHashSet recipientIdsOf(String response) {
+        IntHashSet recipientIds = recipientIdsByResponse.get(response);
+        if (recipientIds == null) {
+            recipientIds = new IntHashSet();
+            for (Entry entry : entries) {
+                if (entry.response.equals(response)) {
+                    for (int i = 0; i < entry.recipientIdCount; i++) {
+                        recipientIds.add(entry.recipientIds[i]);
+                    }
+                }
+            }
+            recipientIdsByResponse.put(response, recipientIds);
         }
+        return recipientIds;
     }
 
     // ==========================================================================
@@ -50,16 +259,23 @@ public final class Broadcast {
      */
     public static Broadcast okay(Command command, Collection<String> recipients) {
         Broadcast broadcast = new Broadcast();
-        for (String recipient : recipients) {
-            broadcast.addResponse(recipient, command.toString());
+        // Format the response once, so every recipient shares the same string
+        String response = command.toString();
+
+        if (!(command instanceof NicknameCommand)) {
+            broadcast.addResponses(recipients, response);
+            return broadcast;
         }
 
         // Need to send response to user ID associated with *new* nick
-        if (command instanceof NicknameCommand) {
-            broadcast.responses.remove(command.getSender());
-            NicknameCommand nickCommand = (NicknameCommand) command;
-            broadcast.addResponse(nickCommand.getNewNickname(), command.toString());
+        String oldNick = command.getSender();
+        for (String recipient : recipients) {
+            if (!recipient.equals(oldNick)) {
+                broadcast.addResponse(recipient, response);
+            }
         }
+        NicknameCommand nickCommand = (NicknameCommand) command;
+        broadcast.addResponse(nickCommand.getNewNickname(), response);
         return broadcast;
     }
 
@@ -78,9 +294,7 @@ public final class Broadcast {
         }
         Broadcast broadcast = new Broadcast();
         String recipient = command.getSender();
-        int errorCode = error.getCode();
-        String response = String.format(":%s ERROR %d", recipient, errorCode);
-        broadcast.addResponse(recipient, response);
+        broadcast.addResponse(recipient, errorResponse(recipient, error));
         return broadcast;
     }
 
@@ -114,9 +328,7 @@ public final class Broadcast {
         }
         Broadcast broadcast = new Broadcast();
         String response = String.format(":%s QUIT", user);
-        for (String recipient : recipients) {
-            broadcast.addResponse(recipient, response);
-        }
+        broadcast.addResponses(recipients, response);
         return broadcast;
     }
 
@@ -158,14 +370,239 @@ public final class Broadcast {
         return broadcast;
     }
 
+    // ==========================================================================
+    // Factory methods addressed by user ID
+    // ==========================================================================
+
+    /**
+     * Like {@link #okay(Command, Collection)}, but addressed by user ID. A
+     * {@link NicknameCommand} needs no special handling, since the sender's ID
+     * already belongs to their new nickname.
+     *
+     * @param command      The {@link Command} whose effects to broadcast
+     * @param recipientIds The distinct IDs of the users who should receive the
+     *                     broadcast
+     * @param model        The model the IDs belong to
+     * @return A {@code Broadcast} representing a set of responses to send
+     */
+    static Broadcast okay(Command command, int[] recipientIds, ServerModelApi model) {
+        Broadcast broadcast = new Broadcast(model);
+        broadcast.addResponses(recipientIds, command.toString(), command.getEncoded());
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #error(Command, ServerResponse)}, but addressed to the
+     * sender's user ID.
+     *
+     * @param command The command which caused the error
+     * @param error   The {@link ServerResponse} that the command caused
+     * @param model   The model the sender's ID belongs to
+     * @return A {@code Broadcast} representing the response to send
+     * @throws IllegalArgumentException if error value is {@code OKAY}
+     */
+    static Broadcast error(Command command, ServerResponse error, ServerModelApi model) {
+        if (error == ServerResponse.OKAY) {
+            throw new IllegalArgumentException("Invalid error type");
+        }
+        Broadcast broadcast = new Broadcast(model);
+        broadcast.addResponse(command.getSenderId(), errorResponse(command.getSender(), error), null);
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #error(Command, ServerResponse, ServerModelApi)}, for one
+     * target of a {@link BatchCommand}. The target is named after the error
+     * code, so that the sender can tell which of its targets failed.
+     *
+     * @param command The command which caused the error
+     * @param error   The {@link ServerResponse} that the command caused
+     * @param target  The channel for which the command failed
+     * @param model   The model the sender's ID belongs to
+     * @return A {@code Broadcast} representing the response to send
+     * @throws IllegalArgumentException if error value is {@code OKAY}
+     */
+    static Broadcast error(Command command, ServerResponse error, String target, ServerModelApi model) {
+        if (error == ServerResponse.OKAY) {
+            throw new IllegalArgumentException("Invalid error type");
+        }
+        Broadcast broadcast = new Broadcast(model);
+        String response = errorResponse(command.getSender(), error) + " " + target;
+        broadcast.addResponse(command.getSenderId(), response, null);
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #connected(String)}, but addressed to the new client's user
+     * ID.
+     *
+     * @param recipient   The automatically generated nickname for the client
+     * @param recipientId The new client's user ID
+     * @param model       The model the ID belongs to
+     * @return A {@code Broadcast} to the new client
+     */
+    static Broadcast connected(String recipient, int recipientId, ServerModelApi model) {
+        Broadcast broadcast = new Broadcast(model);
+        broadcast.addResponse(recipientId, String.format(":%s CONNECT", recipient), null);
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #disconnected(String, Collection)}, but addressed by user ID.
+     *
+     * @param user         The nickname of the disconnected user
+     * @param userId       The ID of the disconnected user
+     * @param recipientIds The distinct IDs of the users who should be informed
+     *                     of the disconnection. Should not include the user who
+     *                     disconnected.
+     * @param model        The model the IDs belong to
+     * @return A {@code Broadcast} representing the response to send
+     */
+    static Broadcast disconnected(String user, int userId, int[] recipientIds, ServerModelApi model) {
+        for (int recipientId : recipientIds) {
+            if (recipientId == userId) {
+                throw new IllegalArgumentException("Disconnected user in broadcast");
+            }
+        }
+        Broadcast broadcast = new Broadcast(model);
+        broadcast.addResponses(recipientIds, String.format(":%s QUIT", user), null);
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #names(Command, Collection, String)}, but addressed by user ID,
+     * and given the NAMES payload ready-made, as kept by {@link Channel}.
+     *
+     * @param command      The command issued by the client (Invite or Join)
+     * @param recipientIds The distinct IDs of the users in the channel, including
+     *                     the user who joined it
+     * @param userToAddId  The ID of the user who joined the channel
+     * @param namesPayload The channel members' nicknames, sorted, with the
+     *                     owner's marked by '@'
+     * @param model        The model the IDs belong to
+     * @return A {@code Broadcast} representing the responses to send
+     * @throws IllegalArgumentException if {@code command} is not an instanceof
+     *                                  {@link JoinCommand} or {@link InviteCommand}
+     */
+    static Broadcast names(Command command, int[] recipientIds, int userToAddId, String namesPayload,
+            ServerModelApi model) {
+        String[] target = namesTarget(command);
+
+        // Relay JOIN or INVITE normally, then NAMES to the user who joined
+        Broadcast broadcast = okay(command, recipientIds, model);
+        // The payload may be long, so it is copied once rather than formatted
+        String namesResponse = ":" + target[0] + " NAMES " + target[1] + " :" + namesPayload;
+        broadcast.addResponse(userToAddId, namesResponse, null);
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #names(Command, int[], int, String, ServerModelApi)}, but for
+     * a user who has enabled the NAMES extension with EXT. The payload is sent
+     * in NAMES responses of at most {@link #NAMES_CHUNK_LENGTH} characters of
+     * names each, followed by an ENDNAMES response carrying the channel's
+     * version, from which the user can later ask for changes with NAMESDELTA.
+     *
+     * @param command      The command issued by the client (Invite or Join)
+     * @param recipientIds The distinct IDs of the users in the channel, including
+     *                     the user who joined it
+     * @param userToAddId  The ID of the user who joined the channel
+     * @param namesPayload The channel members' nicknames, sorted, with the
+     *                     owner's marked by '@'
+     * @param version      The version of the channel's names
+     * @param model        The model the IDs belong to
+     * @return A {@code Broadcast} representing the responses to send
+     * @throws IllegalArgumentException if {@code command} is not an instanceof
+     *                                  {@link JoinCommand} or {@link InviteCommand}
+     */
+    static Broadcast chunkedNames(Command command, int[] recipientIds, int userToAddId, String namesPayload,
+            long version, ServerModelApi model) {
+        String[] target = namesTarget(command);
+        Broadcast broadcast = okay(command, recipientIds, model);
+        broadcast.addNamesChunks(userToAddId, target[0], target[1], "NAMES", namesPayload, version);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} answering a {@link NamesDeltaCommand} with the
+     * changes to the channel's names since the version the client gave, in
+     * NAMESDELTA responses of at most {@link #NAMES_CHUNK_LENGTH} characters of
+     * changes each, followed by ENDNAMES with the channel's current version.
+     *
+     * @param command The NAMESDELTA command
+     * @param changes The changes to the names, as "+nick", "+@owner" or "-nick",
+     *                each nickname at most once
+     * @param version The current version of the channel's names
+     * @param model   The model the sender's ID belongs to
+     * @return A {@code Broadcast} to the sender
+     */
+    static Broadcast namesDelta(NamesDeltaCommand command, List<String> changes, long version,
+            ServerModelApi model) {
+        Broadcast broadcast = new Broadcast(model);
+        StringBuilder payload = new StringBuilder();
+        for (String change : changes) {
+            if (payload.length() > 0) {
+                payload.append(' ');
+            }
+            payload.append(change);
+        }
+        broadcast.addNamesChunks(command.getSenderId(), command.getSender(), command.getChannel(), "NAMESDELTA",
+                payload.toString(), version);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} answering a {@link NamesDeltaCommand} whose
+     * version is too old for its changes to be known, with the channel's full
+     * names in chunks, as for {@link #chunkedNames}.
+     *
+     * @param command      The NAMESDELTA command
+     * @param namesPayload The channel members' nicknames, sorted, with the
+     *                     owner's marked by '@'
+     * @param version      The current version of the channel's names
+     * @param model        The model the sender's ID belongs to
+     * @return A {@code Broadcast} to the sender
+     */
+    static Broadcast resyncNames(NamesDeltaCommand command, String namesPayload, long version,
+            ServerModelApi model) {
+        Broadcast broadcast = new Broadcast(model);
+        broadcast.addNamesChunks(command.getSenderId(), command.getSender(), command.getChannel(), "NAMES",
+                namesPayload, version);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} holding the responses of all the given
+     * broadcasts. Each recipient receives its responses in the order in which the
+     * broadcasts are given, without duplicates.
+     *
+     * @param broadcasts The broadcasts to merge
+     * @return A {@code Broadcast} representing all of their responses
+     */
+    static Broadcast merge(Collection<Broadcast> broadcasts) {
+        Broadcast merged = new Broadcast();
+        for (Broadcast broadcast : broadcasts) {
+            for (Entry entry : broadcast.entries) {
+                for (String recipient : entry.recipients) {
+                    merged.addResponse(recipient, entry.response);
+                }
+                for (int i = 0; i < entry.recipientIdCount; i++) {
+                    merged.addResponse(entry.recipientIds[i], entry.recipientNicknames[i], entry.response,
+                            entry.encoded);
+                }
+            }
+        }
+        return merged;
+    }
+
     // ==========================================================================
     // Response dispatch
     // ==========================================================================
 
     /**
      * You should not call this method yourself. Associates the stored responses
-     * with the user IDs of the recipients. This * function will be called by the
-     * {@link ServerBackend} before dispatching the {@code Broadcast}.
+     * with the user IDs of the recipients. Recipients addressed by nickname are
+     * looked up in the given model; the rest already have their IDs.
      * 
      * @param model A class conforming to {@link ServerModelApi} which can be used
      *              to look up user IDs.
@@ -174,17 +611,76 @@ public final class Broadcast {
      */
     public Map<Integer, List<String>> getResponses(ServerModelApi model) {
         Map<Integer, List<String>> userIdResponses = new TreeMap<>();
-        for (Map.Entry<String, List<String>> entry : responses.entrySet()) {
-            int userId = model.getUserId(entry.getKey());
-            userIdResponses.put(userId, entry.getValue());
+        for (Entry entry : entries) {
+            for (String recipient : entry.recipients) {
+                addTo(userIdResponses, model.getUserId(recipient), entry.response);
+            }
+            for (int i = 0; i < entry.recipientIdCount; i++) {
+                addTo(userIdResponses, entry.recipientIds[i], entry.response);
+            }
         }
         return userIdResponses;
     }
 
+    /**
+     * Gets the distinct responses in the broadcast, each with its recipients, in
+     * the order they were added. The backend dispatches from these, so each
+     * response is handled once however many users it goes to.
+     *
+     * @return the entries of the broadcast
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
     // ==========================================================================
     // Private utility methods
     // ==========================================================================
 
+    /**
+     * Gets the nickname of the user joining a channel with a JOIN or INVITE
+     * command, and the channel's name.
+     */
+    private static String[] namesTarget(Command command) {
+        if (command instanceof JoinCommand) {
+            JoinCommand joinCommand = (JoinCommand) command;
+            return new String[] { joinCommand.getSender(), joinCommand.getChannel() };
+        } else if (command instanceof InviteCommand) {
+            InviteCommand inviteCommand = (InviteCommand) command;
+            return new String[] { inviteCommand.getUserToInvite(), inviteCommand.getChannel() };
+        }
+        throw new IllegalArgumentException("Invalid command type");
+    }
+
+    /**
+     * Adds a space-separated payload for one user as responses of the given
+     * type, splitting it between words into chunks of at most
+     * {@link #NAMES_CHUNK_LENGTH} characters, then an ENDNAMES response with
+     * the channel's version. An empty payload is sent as ENDNAMES alone.
+     */
+    private void addNamesChunks(int recipientId, String user, String channelName, String type, String payload,
+            long version) {
+        String prefix = ":" + user + " " + type + " " + channelName + " :";
+        int length = payload.length();
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(start + NAMES_CHUNK_LENGTH, length);
+            if (end < length) {
+                int space = payload.lastIndexOf(' ', end);
+                if (space > start) {
+                    end = space;
+                } else {
+                    // a single word longer than a chunk goes on its own
+                    end = payload.indexOf(' ', end);
+                    end = end < 0 ? length : end;
+                }
+            }
+            addResponse(recipientId, prefix + payload.substring(start, end), null);
+            start = end + 1;
+        }
+        addResponse(recipientId, ":" + user + " ENDNAMES " + channelName + " " + version, null);
+    }
+
     /**
      * Generates a payload for a {@code NAMES} response for some channel, given the
      * nickname of the channel's owner, and a collection of the nicknames of the
@@ -214,6 +710,47 @@ public final class Broadcast {
         return payload.toString().trim();
     }
 
+    /**
+     * Gets the responses for each recipient, in order. Two broadcasts are equal
+     * when these are equal, however their entries are arranged.
+     */
+    private Map<String, List<String>> toResponseMap() {
+        Map<String, List<String>> responses = new TreeMap<>();
+        for (Entry entry : entries) {
+            for (String recipient : entry.recipients) {
+                addTo(responses, recipient, entry.response);
+            }
+            for (int i = 0; i < entry.recipientIdCount; i++) {
+                // A user who was not registered when added has no nickname
+                String recipient = entry.recipientNicknames[i];
+                if (recipient != null) {
+                    addTo(responses, recipient, entry.response);
+                }
+            }
+        }
+        return responses;
+    }
+
+    private static <K> void addTo(Map<K, List<String>> responses, K recipient, String response) {
+        List<String> userResponses = responses.get(recipient);
+        if (userResponses == null) {
+            userResponses = new LinkedList<>();
+            responses.put(recipient, userResponses);
+        }
+        userResponses.add(response);
+    }
+
+    /**
+     * Formats the ERROR response telling a user that their command failed.
+     *
+     * @param recipient The nickname of the user
+     * @param error     The reason the command failed
+     * @return the response line
+     */
+    static String errorResponse(String recipient, ServerResponse error) {
+        return String.format(":%s ERROR %d", recipient, error.getCode());
+    }
+
     // ==========================================================================
     // Overrides from Object
     // ==========================================================================
@@ -226,16 +763,16 @@ public final class Broadcast {
             return false;
         }
         Broadcast that = (Broadcast) o;
-        return this.responses.equals(that.responses);
+        return this.toResponseMap().equals(that.toResponseMap());
     }
 
 
     public int hashCode() {
-        return responses.hashCode();
+        return toResponseMap().hashCode();
     }
 
     public String toString() {
-        return responses.toString();
+        return toResponseMap().toString();
     }
 
 }
\ No newline at end of file
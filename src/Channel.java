@@ -1,49 +1,315 @@
 import java.util.*;
 
 public final class Channel implements Comparable<Channel> {
-    private Set<String> channelNicknames;
-    private String owner;
+    // the most changes to a channel's names remembered for NAMESDELTA
+    static final int CHANGE_LOG_CAPACITY = 1024;
+
+    private final String name;
+    private final ServerModel model;
+    // members and owner are kept by user ID, which never changes while a user
+    // is connected; nicknames are only looked up when they are asked for
+    private MemberSet memberIds;
+    private int ownerId;
     private boolean prv;
+    // the members' nicknames in sorted order, and the NAMES payload rendering
+    // them with the owner's marked by '@', where each name starts at its
+    // offset. Both are made when NAMES is first needed, and then edited in
+    // place as members come, go and change nickname; null until then
+    private String[] sortedNames;
+    private int[] nameOffsets;
+    private int nameCount;
+    private StringBuilder rendering;
+    // the rendering as a string, kept until it changes; null if not made yet
+    private String namesPayload;
+    // counts the changes to the channel's names
+    private long version;
+    // the latest changes to the names while they are kept, as "+nick",
+    // "+@owner" or "-nick"; the change that made version v is at
+    // v % CHANGE_LOG_CAPACITY, for versions after loggedSince
+    private String[] changeLog;
+    private long loggedSince;
 
-    public Channel(String owner) {
-        this.owner = owner;
-        channelNicknames = new TreeSet<>();
-        channelNicknames.add(owner);
-        this.prv = false;
+    public Channel(String name, ServerModel model, int ownerId) {
+        this(name, model, ownerId, false);
     }
 
-    public Channel(String owner, Boolean prv) {
-        this.owner = owner;
-        channelNicknames = new TreeSet<>();
-        channelNicknames.add(owner);
+    public Channel(String name, ServerModel model, int ownerId, Boolean prv) {
+        this.name = name;
+        this.model = model;
+        this.ownerId = ownerId;
+        memberIds = new MemberSet();
+        memberIds.add(ownerId);
         this.prv = prv;
     }
 
+    // get the name of the channel
+    public String getName() {
+        return name;
+    }
+
     // get users' nicknames in a channel (to implement getUsersInChannel in
-    // ServerModel)
+    // ServerModel). The set is a copy; changes to it do not affect the channel.
     public Set<String> getUsersInChannel() {
-        return channelNicknames;
+        Set<String> nicknames = new TreeSet<>();
+        for (int userId : memberIds.toArray()) {
+            String nickname = model.getNickname(userId);
+            if (nickname != null) {
+                nicknames.add(nickname);
+            }
+        }
+        return nicknames;
+    }
+
+    // get a live, unmodifiable view of the users' nicknames in a channel
+    public Set<String> getUsersView() {
+        return new AbstractSet<String>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && Channel.this.contains(model.getUserId((String) o));
+            }
+
+            @Override
+            public int size() {
+                return memberIds.size();
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                final int[] ids = memberIds.toArray();
+                return new Iterator<String>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < ids.length;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (next >= ids.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return model.getNickname(ids[next++]);
+                    }
+                };
+            }
+        };
+    }
+
+    // get the user IDs of the users in a channel
+    public int[] getMemberIds() {
+        return memberIds.toArray();
+    }
+
+    // check if a user is in the channel
+    public boolean contains(int userId) {
+        return memberIds.contains(userId);
+    }
+
+    // get the number of users in the channel
+    public int size() {
+        return memberIds.size();
     }
 
     // get the nickname of owner of the channel (to implement getOwner in
     // ServerModel)
     public String getOwner() {
-        return this.owner;
+        return model.getNickname(ownerId);
+    }
+
+    // get the user ID of the owner of the channel
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    // remove user from the channel; true if they were in it
+    public boolean remove(int userId) {
+        if (!memberIds.remove(userId)) {
+            return false;
+        }
+        if (sortedNames != null) {
+            removeName(model.getNickname(userId));
+        } else {
+            version++;
+        }
+        return true;
+    }
+
+    // add user to a channel; true if they were not already in it
+    public boolean add(int userId) {
+        if (!memberIds.add(userId)) {
+            return false;
+        }
+        if (sortedNames != null) {
+            addName(model.getNickname(userId), userId == ownerId);
+        } else {
+            version++;
+        }
+        return true;
+    }
+
+    // update the channel's names when a member changes nickname
+    public void rename(int userId, String oldNickname, String newNickname) {
+        if (sortedNames != null) {
+            removeName(oldNickname);
+            addName(newNickname, userId == ownerId);
+        } else {
+            version++;
+        }
     }
 
-    // remove user from the channel
-    public void remove(String user) {
-        channelNicknames.remove(user);
+    // get the version of the channel's names, which goes up whenever they change
+    public long getVersion() {
+        return version;
+    }
+
+    // get the changes to the channel's names since a version, as "+nick" for a
+    // name that was added, with '@' before the owner's, or "-nick" for one that
+    // was removed. Each nickname appears once, with its latest change. Returns
+    // null if the changes since that version are no longer known.
+    public List<String> getNameChangesSince(long since) {
+        if (changeLog == null || since < loggedSince || since < version - CHANGE_LOG_CAPACITY
+                || since > version) {
+            return null;
+        }
+        Map<String, String> latest = new LinkedHashMap<>();
+        for (long v = since + 1; v <= version; v++) {
+            String change = changeLog[(int) (v % CHANGE_LOG_CAPACITY)];
+            String nickname = change.substring(change.charAt(1) == '@' ? 2 : 1);
+            latest.remove(nickname);
+            latest.put(nickname, change);
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    // get the payload of a NAMES response for the channel: the members'
+    // nicknames in sorted order, separated by spaces, with the owner's marked
+    // by '@'. It is only turned into a new string after the names change.
+    public String getNamesPayload() {
+        if (namesPayload == null) {
+            if (sortedNames == null) {
+                renderNames();
+            }
+            namesPayload = rendering.toString();
+        }
+        return namesPayload;
+    }
+
+    // helper: sort and render the members' nicknames for the first time
+    private void renderNames() {
+        int[] ids = memberIds.toArray();
+        sortedNames = new String[Math.max(4, ids.length)];
+        nameOffsets = new int[sortedNames.length];
+        nameCount = 0;
+        for (int userId : ids) {
+            String nickname = model.getNickname(userId);
+            if (nickname != null) {
+                sortedNames[nameCount++] = nickname;
+            }
+        }
+        Arrays.sort(sortedNames, 0, nameCount);
+        changeLog = new String[CHANGE_LOG_CAPACITY];
+        loggedSince = version;
+        String owner = getOwner();
+        rendering = new StringBuilder();
+        for (int i = 0; i < nameCount; i++) {
+            if (i > 0) {
+                rendering.append(' ');
+            }
+            nameOffsets[i] = rendering.length();
+            if (sortedNames[i].equals(owner)) {
+                rendering.append('@');
+            }
+            rendering.append(sortedNames[i]);
+        }
+    }
+
+    // helper: insert a nickname into the sorted names and the rendering
+    private void addName(String nickname, boolean owner) {
+        namesPayload = null;
+        if (nickname == null) {
+            return;
+        }
+        int index = Arrays.binarySearch(sortedNames, 0, nameCount, nickname);
+        if (index >= 0) {
+            return;
+        }
+        index = -index - 1;
+        String token = owner ? "@" + nickname : nickname;
+
+        // a name goes before the space of the one it precedes, or else after a
+        // space at the end
+        int offset;
+        if (index < nameCount) {
+            offset = nameOffsets[index];
+            rendering.insert(offset, ' ').insert(offset, token);
+        } else {
+            if (nameCount > 0) {
+                rendering.append(' ');
+            }
+            offset = rendering.length();
+            rendering.append(token);
+        }
+
+        if (nameCount == sortedNames.length) {
+            sortedNames = Arrays.copyOf(sortedNames, nameCount * 2);
+            nameOffsets = Arrays.copyOf(nameOffsets, nameCount * 2);
+        }
+        System.arraycopy(sortedNames, index, sortedNames, index + 1, nameCount - index);
+        System.arraycopy(nameOffsets, index, nameOffsets, index + 1, nameCount - index);
+        sortedNames[index] = nickname;
+        nameOffsets[index] = offset;
+        nameCount++;
+        shiftOffsets(index + 1, token.length() + 1);
+        logChange("+" + token);
+    }
+
+    // helper: take a nickname out of the sorted names and the rendering
+    private void removeName(String nickname) {
+        namesPayload = null;
+        if (nickname == null) {
+            // the nickname is already gone, so start again from the members
+            sortedNames = null;
+            nameOffsets = null;
+            rendering = null;
+            changeLog = null;
+            version++;
+            return;
+        }
+        int index = Arrays.binarySearch(sortedNames, 0, nameCount, nickname);
+        if (index < 0) {
+            return;
+        }
+
+        // a name goes with the space after it, or the one before it at the end
+        int start = nameOffsets[index];
+        int end;
+        if (index + 1 < nameCount) {
+            end = nameOffsets[index + 1];
+        } else {
+            end = rendering.length();
+            start = Math.max(0, start - 1);
+        }
+        rendering.delete(start, end);
+
+        System.arraycopy(sortedNames, index + 1, sortedNames, index, nameCount - index - 1);
+        System.arraycopy(nameOffsets, index + 1, nameOffsets, index, nameCount - index - 1);
+        sortedNames[--nameCount] = null;
+        shiftOffsets(index, start - end);
+        logChange("-" + nickname);
     }
 
-    // add user to a channel
-    public void add(String nickname) {
-        channelNicknames.add(nickname);
+    // helper: count a change to the names, and remember it
+    private void logChange(String change) {
+        version++;
+        changeLog[(int) (version % CHANGE_LOG_CAPACITY)] = change;
     }
 
-    // get the owner of the channel
-    public void nameOwner(String name) {
-        this.owner = name;
+    // helper: move the names from the given index on by a number of characters
+    private void shiftOffsets(int from, int delta) {
+        for (int i = from; i < nameCount; i++) {
+            nameOffsets[i] += delta;
+        }
     }
 
     // check if channel is private or not
@@ -55,4 +321,4 @@ public final class Channel implements Comparable<Channel> {
     public int compareTo(Channel o) {
         return Integer.compare(1, 0);
     }
-}
\ No newline at end of file
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -17,7 +18,14 @@ public abstract class Command {
     /**
      * The current nickname in use by the sender of the {@code Command}.
      */
-    private final String sender;
+    private String sender;
+
+    /**
+     * The command as it is relayed to clients, and its encoding, each made the
+     * first time it is needed.
+     */
+    private String text;
+    private ByteBuffer encoded;
 
     /**
      * Constructor, initializes the private fields of the object.
@@ -45,6 +53,32 @@ public abstract class Command {
         return sender;
     }
 
+    /**
+     * Sets the nickname of the client who issued the {@code Command}. The
+     * backend parses commands before the model thread knows their sender's
+     * current nickname, and binds it just before running them.
+     *
+     * @param sender The sender's current nickname
+     */
+    void setSender(String sender) {
+        if (!Objects.equals(this.sender, sender)) {
+            this.sender = sender;
+            text = null;
+            encoded = null;
+        }
+    }
+
+    /**
+     * Gets the name of the channel the {@code Command} acts on, so that the
+     * backend can route it to the model shard holding that channel.
+     *
+     * @return The channel's name, or null if the command does not act on a
+     *         single channel
+     */
+    public String getChannel() {
+        return null;
+    }
+
     /**
      * Processes the command and updates the server model accordingly.
      *
@@ -55,12 +89,50 @@ public abstract class Command {
      */
     public abstract Broadcast updateServerModel(ServerModel model);
 
+    /**
+     * Appends the command's verb and arguments, as they are relayed to clients,
+     * after the sender's prefix.
+     *
+     * @param out The builder to append to
+     */
+    abstract void appendTo(StringBuilder out);
+
+    /**
+     * Gets the command as it is relayed to clients. The string is built once,
+     * and reused for every broadcast and comparison.
+     *
+     * @return the command's string representation
+     */
+    @Override
+    public final String toString() {
+        if (text == null) {
+            StringBuilder out = new StringBuilder(64);
+            out.append(':').append(sender).append(' ');
+            appendTo(out);
+            text = out.toString();
+        }
+        return text;
+    }
+
+    /**
+     * Gets the command encoded as it is sent to clients, made once like
+     * {@link #toString}.
+     *
+     * @return a read-only buffer holding the encoded command and its terminator
+     */
+    ByteBuffer getEncoded() {
+        if (encoded == null) {
+            encoded = ServerBackend.encode(toString());
+        }
+        return encoded;
+    }
+
     /**
      * Returns {@code true} if two {@code Command}s are equal; that is, if they
      * produce the same string representation.
      * 
-     * Note that all subclasses of {@code Command} must override their
-     * {@code toString} method appropriately for this definition to make sense. (We
+     * Note that all subclasses of {@code Command} must implement their
+     * {@code appendTo} method appropriately for this definition to make sense. (We
      * have done this for you below).
      *
      * @param o the object to compare with {@code this} for equality
@@ -76,6 +148,11 @@ public abstract class Command {
         }
         return this.toString().equals(o.toString());
     }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
 }
 
 //==============================================================================
@@ -88,29 +165,32 @@ public abstract class Command {
  */
 class NicknameCommand extends Command {
     private final String newNickname;
+    // Checked when the command is parsed, off the model thread
+    private final boolean validNickname;
 
     public NicknameCommand(int senderId, String sender, String newNickname) {
         super(senderId, sender);
         this.newNickname = newNickname;
+        validNickname = ServerModel.isValidName(newNickname);
     }
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
         // broadcast all names already in channel
-        String send = getSender();
         int sendID = getSenderId();
-        Collection<String> usersToBroadcastTo = model.getOtherUsers(send);
-        usersToBroadcastTo.add(send);
-        if (model.getRegisteredUsers().contains(newNickname)) {
-            return Broadcast.error(this, ServerResponse.NAME_ALREADY_IN_USE);
+        if (model.isRegistered(newNickname)) {
+            return Broadcast.error(this, ServerResponse.NAME_ALREADY_IN_USE, model);
         }
         // broadcast nickname change (to all)
-        if (ServerModel.isValidName(newNickname)) {
+        if (validNickname) {
+            int[] others = model.getOtherUserIds(sendID);
+            int[] usersToBroadcastTo = Arrays.copyOf(others, others.length + 1);
+            usersToBroadcastTo[others.length] = sendID;
             model.changeNickname(sendID, newNickname);
-            return Broadcast.okay(this, usersToBroadcastTo);
+            return Broadcast.okay(this, usersToBroadcastTo, model);
 
         } // error if n invalid name
-        return Broadcast.error(this, ServerResponse.INVALID_NAME);
+        return Broadcast.error(this, ServerResponse.INVALID_NAME, model);
 
     }
 
@@ -119,8 +199,8 @@ class NicknameCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s NICK %s", getSender(), newNickname);
+    void appendTo(StringBuilder out) {
+        out.append("NICK ").append(newNickname);
     }
 }
 
@@ -130,33 +210,34 @@ class NicknameCommand extends Command {
 class CreateCommand extends Command {
     private final String channel;
     private final boolean inviteOnly;
+    // Checked when the command is parsed, off the model thread
+    private final boolean validChannel;
 
     public CreateCommand(int senderId, String sender, String channel, boolean inviteOnly) {
         super(senderId, sender);
         this.channel = channel;
         this.inviteOnly = inviteOnly;
+        validChannel = ServerModel.isValidName(channel);
     }
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
         // create channel
-        String sender = getSender();
-        Collection<String> newCollection = new TreeSet<String>();
-        newCollection.add(sender);
-        if (ServerModel.isValidName(channel)) {
+        if (validChannel) {
             model.create(channel, getSender(), isInviteOnly());
-            return Broadcast.okay(this, newCollection);
+            return Broadcast.okay(this, new int[] { getSenderId() }, model);
         }
         // error - channel name already exists
-        if (model.getChannels().contains(channel)) {
-            return Broadcast.error(this, ServerResponse.NAME_ALREADY_IN_USE);
+        if (model.hasChannel(channel)) {
+            return Broadcast.error(this, ServerResponse.NAME_ALREADY_IN_USE, model);
         }
 
         // error - invalid name
-        return Broadcast.error(this, ServerResponse.INVALID_NAME);
+        return Broadcast.error(this, ServerResponse.INVALID_NAME, model);
 
     }
 
+    @Override
     public String getChannel() {
         return channel;
     }
@@ -166,9 +247,8 @@ class CreateCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        int flag = inviteOnly ? 1 : 0;
-        return String.format(":%s CREATE %s %d", getSender(), channel, flag);
+    void appendTo(StringBuilder out) {
+        out.append("CREATE ").append(channel).append(inviteOnly ? " 1" : " 0");
     }
 }
 
@@ -187,33 +267,37 @@ class JoinCommand extends Command {
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
-        if (model.getChannels().contains(channel)) {
+        if (model.hasChannel(channel)) {
             Channel c = model.getChannelByChannelName(channel);
             // error - private channel
             if (c.isPrivate()) {
-                return Broadcast.error(this, ServerResponse.JOIN_PRIVATE_CHANNEL);
+                return Broadcast.error(this, ServerResponse.JOIN_PRIVATE_CHANNEL, model);
             }
             String send = getSender();
-            Set<String> all = model.getChannelByChannelName(channel).getUsersInChannel();
-            String owner = model.getChannelByChannelName(channel).getOwner();
             // add user to the channel
-            model.join(model.getChannelByChannelName(channel), send);
-            // send a broadcast to everyone in the channel
-            return Broadcast.names(this, all, owner);
+            model.join(c, send);
+            // send a broadcast to everyone in the channel, with NAMES in chunks if
+            // the user asked for them
+            if (model.hasNamesExtension(getSenderId())) {
+                return Broadcast.chunkedNames(this, c.getMemberIds(), getSenderId(), c.getNamesPayload(),
+                        c.getVersion(), model);
+            }
+            return Broadcast.names(this, c.getMemberIds(), getSenderId(), c.getNamesPayload(), model);
 
         }
 
         // error - channel does not exist
-        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
     }
 
+    @Override
     public String getChannel() {
         return channel;
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s JOIN %s", getSender(), channel);
+    void appendTo(StringBuilder out) {
+        out.append("JOIN ").append(channel);
     }
 }
 
@@ -233,28 +317,26 @@ class MessageCommand extends Command {
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
-        if (!model.getChannels().contains(channel)) {
-            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        if (!model.hasChannel(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
         }
-        Channel c = model.getChannelByChannelName(channel);
         String send = getSender();
-        Set<String> usersInChan = c.getUsersInChannel();
-
-        if (c.getUsersInChannel().contains(send)) {
-            return Broadcast.okay(this, usersInChan);
+        if (model.isMember(channel, send)) {
+            return Broadcast.okay(this, model.getChannelByChannelName(channel).getMemberIds(), model);
         }
 
         // error - channel does not exist
-        return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
+        return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL, model);
     }
 
+    @Override
     public String getChannel() {
         return channel;
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s MESG %s :%s", getSender(), channel, message);
+    void appendTo(StringBuilder out) {
+        out.append("MESG ").append(channel).append(" :").append(message);
     }
 }
 
@@ -272,34 +354,35 @@ class LeaveCommand extends Command {
     @Override
     public Broadcast updateServerModel(ServerModel model) {
         // error - channel does not exist
-        if (!(model.getChannels().contains(channel))) {
-            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        if (!model.hasChannel(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
         }
 
         String send = getSender();
-        Channel c = model.getChannelByChannelName(channel);
-        Set<String> all = c.getUsersInChannel();
-        if (c.getUsersInChannel().contains(send)) {
+        if (model.isMember(channel, send)) {
+            // a copy of the members from before the user leaves, so it includes
+            // them
+            int[] all = model.getChannelByChannelName(channel).getMemberIds();
             model.leave(channel, send);
-            Set<String> all2 = new TreeSet<String>();
-            all2.addAll(all);
-            all2.add(send);
-            System.out.println(send);
-            System.out.println(all2);
-            return Broadcast.okay(this, all2);
+            ServerLog log = ServerLog.get();
+            if (log.isEnabled(ServerLog.Level.DEBUG)) {
+                log.debug("%s left %s; notifying %d users", send, channel, all.length);
+            }
+            return Broadcast.okay(this, all, model);
         }
 
-        return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
+        return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL, model);
 
     }
 
+    @Override
     public String getChannel() {
         return channel;
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s LEAVE %s", getSender(), channel);
+    void appendTo(StringBuilder out) {
+        out.append("LEAVE ").append(channel);
     }
 }
 
@@ -321,32 +404,38 @@ class InviteCommand extends Command {
     public Broadcast updateServerModel(ServerModel model) {
         // error - invited user does not exist
         if (model.getUserId(userToInvite) == -1) {
-            return Broadcast.error(this, ServerResponse.NO_SUCH_USER);
+            return Broadcast.error(this, ServerResponse.NO_SUCH_USER, model);
         }
 
         // error - channel does not exist
-        if ((model.getChannels().contains(channel))) {
+        if (model.hasChannel(channel)) {
             // if channel is public
             if ((model.getChannelByChannelName(channel).isPrivate())) {
-                return Broadcast.error(this, ServerResponse.INVITE_TO_PUBLIC_CHANNEL);
+                return Broadcast.error(this, ServerResponse.INVITE_TO_PUBLIC_CHANNEL, model);
             }
             // if sender is not channel owner
             String send = getSender();
             if (!(model.getChannelByChannelName(channel).getOwner().equals(send))) {
-                return Broadcast.error(this, ServerResponse.USER_NOT_OWNER);
+                return Broadcast.error(this, ServerResponse.USER_NOT_OWNER, model);
             }
 
-            Set<String> all = model.getChannelByChannelName(channel).getUsersInChannel();
-            String owner = model.getChannelByChannelName(channel).getOwner();
             // add user to join channel
-            model.join(model.getChannelByChannelName(channel), userToInvite);
-            // send a broadcast to everyone
-            return Broadcast.names(this, all, owner);
+            Channel c = model.getChannelByChannelName(channel);
+            model.join(c, userToInvite);
+            // send a broadcast to everyone, with NAMES in chunks if the invited
+            // user asked for them
+            int invitedId = model.getUserId(userToInvite);
+            if (model.hasNamesExtension(invitedId)) {
+                return Broadcast.chunkedNames(this, c.getMemberIds(), invitedId, c.getNamesPayload(), c.getVersion(),
+                        model);
+            }
+            return Broadcast.names(this, c.getMemberIds(), invitedId, c.getNamesPayload(), model);
         }
 
-        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
     }
 
+    @Override
     public String getChannel() {
         return channel;
     }
@@ -356,8 +445,8 @@ class InviteCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s INVITE %s %s", getSender(), channel, userToInvite);
+    void appendTo(StringBuilder out) {
+        out.append("INVITE ").append(channel).append(' ').append(userToInvite);
     }
 }
 
@@ -380,33 +469,264 @@ class KickCommand extends Command {
     public Broadcast updateServerModel(ServerModel model) {
         // error - user does not exist
 
-        if (!(model.getRegisteredUsers().contains(userToKick))) {
-            return Broadcast.error(this, ServerResponse.NO_SUCH_USER);
+        if (!model.isRegistered(userToKick)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_USER, model);
         }
 
         // error - channel does not exist
-        if (model.getChannels().contains(channel)) {
+        if (model.hasChannel(channel)) {
             // error - user not owner of channel
             String send = getSender();
             if (!model.getChannelByChannelName(channel).getOwner().equals(send)) {
-                return Broadcast.error(this, ServerResponse.USER_NOT_OWNER);
+                return Broadcast.error(this, ServerResponse.USER_NOT_OWNER, model);
             }
             // error - user not in channel
-            Channel c = model.getChannelByChannelName(channel);
-            Set<String> usersInChannel = new TreeSet<String>();
-            usersInChannel.addAll(model.getChannelByChannelName(channel).getUsersInChannel());
-            if (!c.getUsersInChannel().contains(userToKick)) {
-                return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
+            if (!model.isMember(channel, userToKick)) {
+                return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL, model);
             }
+            int[] usersInChannel = model.getChannelByChannelName(channel).getMemberIds();
 
             model.leave(channel, userToKick);
-            return Broadcast.okay(this, usersInChannel);
+            return Broadcast.okay(this, usersInChannel, model);
+        }
+        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
+    }
+
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    void appendTo(StringBuilder out) {
+        out.append("KICK ").append(channel).append(' ').append(userToKick);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to enable a protocol
+ * extension for itself. The only extension is NAMES: a client that enables it
+ * receives NAMES in chunks of bounded length followed by ENDNAMES with the
+ * channel's version, and may ask for the changes since a version with
+ * NAMESDELTA. Clients that never send EXT keep receiving NAMES on one line.
+ */
+class ExtensionCommand extends Command {
+    static final String NAMES = "NAMES";
+
+    private final String extension;
+
+    public ExtensionCommand(int senderId, String sender, String extension) {
+        super(senderId, sender);
+        this.extension = extension;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        // error - unknown extension
+        if (!NAMES.equals(extension)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_EXTENSION, model);
+        }
+        model.enableNamesExtension(getSenderId());
+        return Broadcast.okay(this, new int[] { getSenderId() }, model);
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    @Override
+    void appendTo(StringBuilder out) {
+        out.append("EXT ").append(extension);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to learn how a channel's
+ * names have changed since a version it was sent with ENDNAMES. The client is
+ * sent the changes, or the full names again if they are no longer known,
+ * followed by ENDNAMES with the channel's current version.
+ */
+class NamesDeltaCommand extends Command {
+    private final String channel;
+    private final long since;
+
+    public NamesDeltaCommand(int senderId, String sender, String channel, long since) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.since = since;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        // error - channel does not exist
+        if (!model.hasChannel(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL, model);
+        }
+        // error - user not in channel
+        if (!model.isMember(channel, getSender())) {
+            return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL, model);
+        }
+        Channel c = model.getChannelByChannelName(channel);
+        List<String> changes = c.getNameChangesSince(since);
+        if (changes == null) {
+            return Broadcast.resyncNames(this, c.getNamesPayload(), c.getVersion(), model);
+        }
+        return Broadcast.namesDelta(this, changes, c.getVersion(), model);
+    }
+
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    @Override
+    void appendTo(StringBuilder out) {
+        out.append("NAMESDELTA ").append(channel).append(' ').append(since);
+    }
+}
+
+/**
+ * Represents a JOIN, LEAVE or MESG {@link Command} issued by a client to several
+ * channels at once, named in a comma-separated list. The whole list is handled
+ * as one command: each channel is joined or left as by the single-channel
+ * command, and errors are reported per channel, naming it after the error
+ * code. A message is relayed once to every user in any of the channels it
+ * reaches, however many of them the user is in, as an ordinary MESG to the
+ * first of those channels the user is in, so clients that never send batches
+ * understand it.
+ */
+class BatchCommand extends Command {
+    private final String verb;
+    private final List<String> channels;
+    private final String message;
+
+    public BatchCommand(int senderId, String sender, String verb, List<String> channels, String message) {
+        super(senderId, sender);
+        this.verb = verb;
+        this.channels = channels;
+        this.message = message;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return updateServerModels(new ServerModel[] { model });
+    }
+
+    /**
+     * Processes the command against a model split into shards, acting on each
+     * channel in the shard that holds it.
+     *
+     * @param models The model of each shard, in order
+     * @return A {@link Broadcast} holding the responses for every channel
+     */
+    Broadcast updateServerModels(ServerModel[] models) {
+        // every shard knows every user, so any of them can address the responses
+        ServerModel users = models[0];
+        List<Broadcast> broadcasts = new ArrayList<>();
+        List<String> reached = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String channel : channels) {
+            if (!seen.add(channel)) {
+                continue;
+            }
+            ServerModel model = models[ServerBackend.shardOf(channel, models.length)];
+            ServerResponse error = check(model, channel);
+            if (error != null) {
+                broadcasts.add(Broadcast.error(this, error, channel, users));
+                continue;
+            }
+            switch (verb) {
+            case "JOIN":
+                broadcasts.add(new JoinCommand(getSenderId(), getSender(), channel).updateServerModel(model));
+                break;
+            case "LEAVE":
+                broadcasts.add(new LeaveCommand(getSenderId(), getSender(), channel).updateServerModel(model));
+                break;
+            default:
+                reached.add(channel);
+            }
+        }
+
+        // relay a message once to each user, in the first channel that reaches
+        // them
+        IntHashSet recipients = new IntHashSet();
+        for (String channel : reached) {
+            ServerModel model = models[ServerBackend.shardOf(channel, models.length)];
+            IntHashSet reachedHere = new IntHashSet();
+            for (int userId : model.getChannelByChannelName(channel).getMemberIds()) {
+                if (recipients.add(userId)) {
+                    reachedHere.add(userId);
+                }
+            }
+            if (!reachedHere.isEmpty()) {
+                Command relay = new MessageCommand(getSenderId(), getSender(), channel, message);
+                broadcasts.add(Broadcast.okay(relay, reachedHere.toArray(), users));
+            }
+        }
+        return Broadcast.merge(broadcasts);
+    }
+
+    // helper: find what stops the sender acting on a channel, or null if nothing
+    private ServerResponse check(ServerModel model, String channel) {
+        // error - channel does not exist
+        if (!model.hasChannel(channel)) {
+            return ServerResponse.NO_SUCH_CHANNEL;
         }
-        return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        if (verb.equals("JOIN")) {
+            // error - private channel
+            if (model.getChannelByChannelName(channel).isPrivate()) {
+                return ServerResponse.JOIN_PRIVATE_CHANNEL;
+            }
+        } else if (!model.isMember(channel, getSender())) {
+            // error - user not in channel
+            return ServerResponse.USER_NOT_IN_CHANNEL;
+        }
+        return null;
+    }
+
+    public String getVerb() {
+        return verb;
+    }
+
+    public List<String> getChannels() {
+        return Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * Finds a channel in the shard that holds all of the batch's channels, so
+     * the batch can run on that shard alone.
+     *
+     * @param shardCount The number of shards
+     * @return one of the channels, or null if they are in more than one shard
+     */
+    String getShardChannel(int shardCount) {
+        if (channels.isEmpty()) {
+            return null;
+        }
+        int shard = ServerBackend.shardOf(channels.get(0), shardCount);
+        for (String channel : channels) {
+            if (ServerBackend.shardOf(channel, shardCount) != shard) {
+                return null;
+            }
+        }
+        return channels.get(0);
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s KICK %s %s", getSender(), channel, userToKick);
+    void appendTo(StringBuilder out) {
+        out.append(verb).append(' ');
+        for (int i = 0; i < channels.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(channels.get(i));
+        }
+        if (message != null) {
+            out.append(" :").append(message);
+        }
     }
 }
@@ -1,8 +1,61 @@
+import java.util.Arrays;
 import java.util.List;
-import java.util.LinkedList;
 
+/**
+ * Turns command strings received from clients into {@link Command} objects.
+ *
+ * A command string is a verb, up to two space-separated parameters, and an
+ * optional payload introduced by a colon, which runs to the end of the line.
+ * {@link Tokens} splits a line in a single pass, recording where each part
+ * starts and ends rather than copying it, and reports malformed lines with a
+ * {@link Result} rather than an exception; only the parts a command keeps are
+ * copied out of the line.
+ *
+ * JOIN, LEAVE and MESG may name several channels, separated by commas, which
+ * makes a {@link BatchCommand}.
+ */
 public final class CommandParser {
 
+    /**
+     * The outcome of tokenizing a command string.
+     */
+    enum Result {
+        /**
+         * The line is a well-formed command.
+         */
+        OK,
+
+        /**
+         * The line has no verb.
+         */
+        EMPTY,
+
+        /**
+         * The verb is not a known command.
+         */
+        UNKNOWN_COMMAND,
+
+        /**
+         * The command is missing a parameter or payload it requires.
+         */
+        MISSING_PARAMETER,
+
+        /**
+         * The line has more than two parameters.
+         */
+        TOO_MANY_PARAMETERS,
+
+        /**
+         * The invite-only flag of a CREATE command is neither 0 nor 1.
+         */
+        INVALID_FLAG,
+
+        /**
+         * The version given to a NAMESDELTA command is not a number.
+         */
+        INVALID_NUMBER
+    }
+
     /**
      * Parses a string command received from a client into its component parts, and
      * creates a {@link Command} object representing it.
@@ -15,80 +68,280 @@ public final class CommandParser {
      *                                  invalid, meaning that it is of an
      *                                  unrecognized type or its components do not
      *                                  match its type.
-     *
-     *                                  You do not need to modify this file.
      */
     public static Command parse(int senderId, String sender, String commandString) {
-        CommandType commandType = null;
-        List<String> parameters = new LinkedList<>();
-        String payload = null;
-        int index;
-
-        while ((index = commandString.indexOf(' ')) > 0) {
-            if (commandString.startsWith(":")) {
-                payload = commandString.substring(1);
-                commandString = "";
-                break;
-            } else {
-                String token = commandString.substring(0, index);
-                if (commandType == null) {
-                    commandType = CommandType.valueOf(token);
+        Tokens tokens = new Tokens();
+        Result result = tokens.tokenize(commandString);
+        if (result != Result.OK) {
+            throw new IllegalArgumentException("Invalid command (" + result + "): " + commandString);
+        }
+        return tokens.toCommand(senderId, sender);
+    }
+
+    /**
+     * The parts of one command string, found by {@link #tokenize}. A
+     * {@code Tokens} can be reused for line after line, so that tokenizing
+     * allocates nothing.
+     */
+    static final class Tokens {
+        private CharSequence line;
+        private CommandType type;
+        private int parameterCount;
+        private final int[] parameterStarts;
+        private final int[] parameterEnds;
+        // The start of the payload, after its colon, or -1 if there is none
+        private int payloadStart;
+
+        /**
+         * Constructs an empty {@code Tokens}.
+         */
+        public Tokens() {
+            parameterStarts = new int[2];
+            parameterEnds = new int[2];
+            clear();
+        }
+
+        /**
+         * Splits a command string into its verb, parameters and payload,
+         * replacing any line tokenized before.
+         *
+         * @param commandString The command string to tokenize
+         * @return {@link Result#OK} if the line is a well-formed command, or
+         *         else what is wrong with it
+         */
+        public Result tokenize(CharSequence commandString) {
+            clear();
+            line = commandString;
+            int length = commandString.length();
+            int index = 0;
+            while (index < length) {
+                if (commandString.charAt(index) == ' ') {
+                    index++;
+                    continue;
+                }
+                if (commandString.charAt(index) == ':') {
+                    payloadStart = index + 1;
+                    break;
+                }
+                int end = index;
+                while (end < length && commandString.charAt(end) != ' ') {
+                    end++;
+                }
+                if (type == null) {
+                    type = verb(commandString, index, end);
+                    if (type == null) {
+                        return Result.UNKNOWN_COMMAND;
+                    }
+                } else if (parameterCount == 2) {
+                    return Result.TOO_MANY_PARAMETERS;
                 } else {
-                    parameters.add(token);
+                    parameterStarts[parameterCount] = index;
+                    parameterEnds[parameterCount] = end;
+                    parameterCount++;
+                }
+                index = end;
+            }
+
+            if (type == null) {
+                return payloadStart < 0 ? Result.EMPTY : Result.UNKNOWN_COMMAND;
+            }
+            if (parameterCount < type.parameters || (type == CommandType.MESG && payloadStart < 0)) {
+                return Result.MISSING_PARAMETER;
+            }
+            if (type == CommandType.CREATE) {
+                int flagStart = parameterStarts[1];
+                if (parameterEnds[1] - flagStart != 1
+                        || (line.charAt(flagStart) != '0' && line.charAt(flagStart) != '1')) {
+                    return Result.INVALID_FLAG;
+                }
+            }
+            if (type == CommandType.NAMESDELTA && !isNumber(parameterStarts[1], parameterEnds[1])) {
+                return Result.INVALID_NUMBER;
+            }
+            if (type.batched && !isList(parameterStarts[0], parameterEnds[0])) {
+                return Result.MISSING_PARAMETER;
+            }
+            return Result.OK;
+        }
+
+        /**
+         * Creates the {@link Command} for the line most recently tokenized, which
+         * must have been well-formed.
+         *
+         * @param senderId The backend-generated ID for the sender of the command
+         * @param sender   The current username of the sender
+         * @return a subclass of {@link Command} corresponding to the line
+         * @throws IllegalStateException if the line was not well-formed
+         */
+        public Command toCommand(int senderId, String sender) {
+            if (type == null) {
+                throw new IllegalStateException("No command tokenized");
+            }
+            if (isBatch()) {
+                List<String> channels = Arrays.asList(getParameter(0).split(","));
+                String message = type == CommandType.MESG ? getPayload() : null;
+                return new BatchCommand(senderId, sender, type.name(), channels, message);
+            }
+            switch (type) {
+            case CREATE:
+                boolean isInviteOnly = line.charAt(parameterStarts[1]) == '1';
+                return new CreateCommand(senderId, sender, getParameter(0), isInviteOnly);
+            case INVITE:
+                return new InviteCommand(senderId, sender, getParameter(0), getParameter(1));
+            case JOIN:
+                return new JoinCommand(senderId, sender, getParameter(0));
+            case KICK:
+                return new KickCommand(senderId, sender, getParameter(0), getParameter(1));
+            case LEAVE:
+                return new LeaveCommand(senderId, sender, getParameter(0));
+            case MESG:
+                return new MessageCommand(senderId, sender, getParameter(0), getPayload());
+            case NICK:
+                return new NicknameCommand(senderId, sender, getParameter(0));
+            case EXT:
+                return new ExtensionCommand(senderId, sender, getParameter(0));
+            case NAMESDELTA:
+                long since = Long.parseLong(getParameter(1));
+                return new NamesDeltaCommand(senderId, sender, getParameter(0), since);
+            default:
+                throw new IllegalStateException("Unexpected command type " + type);
+            }
+        }
+
+        /**
+         * Copies a parameter out of the line.
+         *
+         * @param index The position of the parameter, 0 or 1
+         * @return the parameter, or null if the line does not have it
+         */
+        public String getParameter(int index) {
+            if (index >= parameterCount) {
+                return null;
+            }
+            return line.subSequence(parameterStarts[index], parameterEnds[index]).toString();
+        }
+
+        /**
+         * Copies the payload, without its colon, out of the line.
+         *
+         * @return the payload, or null if the line does not have one
+         */
+        public String getPayload() {
+            if (payloadStart < 0) {
+                return null;
+            }
+            return line.subSequence(payloadStart, line.length()).toString();
+        }
+
+        // Checks that a comma-separated list between start and end has no empty
+        // entries
+        private boolean isList(int start, int end) {
+            if (line.charAt(start) == ',' || line.charAt(end - 1) == ',') {
+                return false;
+            }
+            for (int i = start + 1; i < end; i++) {
+                if (line.charAt(i) == ',' && line.charAt(i - 1) == ',') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Checks whether the first parameter lists several targets
+        private boolean isBatch() {
+            if (!type.batched) {
+                return false;
+            }
+            for (int i = parameterStarts[0]; i < parameterEnds[0]; i++) {
+                if (line.charAt(i) == ',') {
+                    return true;
                 }
-                commandString = commandString.substring(index + 1);
             }
+            return false;
         }
 
-        if (!commandString.isEmpty()) {
-            if (commandString.startsWith(":")) {
-                payload = commandString.substring(1);
-            } else if (commandType == null) {
-                commandType = CommandType.valueOf(commandString);
-            } else {
-                parameters.add(commandString);
+        // Checks that the line holds a version number between start and end
+        private boolean isNumber(int start, int end) {
+            if (end == start || end - start > 18) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (line.charAt(i) < '0' || line.charAt(i) > '9') {
+                    return false;
+                }
             }
+            return true;
         }
 
-        if (commandType == null) {
-            throw new IllegalArgumentException("Unknown command type");
-        } else if (parameters.size() > 2) {
-            throw new IllegalArgumentException("Too many parameters");
+        private void clear() {
+            line = null;
+            type = null;
+            parameterCount = 0;
+            payloadStart = -1;
         }
+    }
 
-        String param0 = parameters.size() >= 1 ? parameters.get(0) : null;
-        String param1 = parameters.size() >= 2 ? parameters.get(1) : null;
-
-        switch (commandType) {
-        case CREATE:
-            boolean isInviteOnly;
-            if ("1".equals(param1)) {
-                isInviteOnly = true;
-            } else if ("0".equals(param1)) {
-                isInviteOnly = false;
-            } else {
+    // Recognizes the verb between start and end, or returns null
+    private static CommandType verb(CharSequence line, int start, int end) {
+        switch (end - start) {
+        case 3:
+            return matches(line, start, CommandType.EXT);
+        case 4:
+            switch (line.charAt(start)) {
+            case 'J':
+                return matches(line, start, CommandType.JOIN);
+            case 'K':
+                return matches(line, start, CommandType.KICK);
+            case 'M':
+                return matches(line, start, CommandType.MESG);
+            case 'N':
+                return matches(line, start, CommandType.NICK);
+            default:
+                return null;
+            }
+        case 5:
+            return matches(line, start, CommandType.LEAVE);
+        case 6:
+            switch (line.charAt(start)) {
+            case 'C':
+                return matches(line, start, CommandType.CREATE);
+            case 'I':
+                return matches(line, start, CommandType.INVITE);
+            default:
                 return null;
             }
-            return new CreateCommand(senderId, sender, param0, isInviteOnly);
-        case INVITE:
-            return new InviteCommand(senderId, sender, param0, param1);
-        case JOIN:
-            return new JoinCommand(senderId, sender, param0);
-        case KICK:
-            return new KickCommand(senderId, sender, param0, param1);
-        case LEAVE:
-            return new LeaveCommand(senderId, sender, param0);
-        case MESG:
-            return new MessageCommand(senderId, sender, param0, payload);
-        case NICK:
-            return new NicknameCommand(senderId, sender, param0);
+        case 10:
+            return matches(line, start, CommandType.NAMESDELTA);
         default:
             return null;
         }
     }
 
+    // Returns the type if its name appears in the line at start, or else null
+    private static CommandType matches(CharSequence line, int start, CommandType type) {
+        String name = type.name();
+        for (int i = 0; i < name.length(); i++) {
+            if (line.charAt(start + i) != name.charAt(i)) {
+                return null;
+            }
+        }
+        return type;
+    }
+
     private enum CommandType {
-        CREATE, INVITE, JOIN, KICK, LEAVE, MESG, NICK
+        CREATE(2, false), INVITE(2, false), JOIN(1, true), KICK(2, false), LEAVE(1, true), MESG(1, true),
+        NICK(1, false), EXT(1, false), NAMESDELTA(2, false);
+
+        // The number of parameters the command requires
+        private final int parameters;
+        // Whether the first parameter may list several channels, separated by
+        // commas
+        private final boolean batched;
+
+        CommandType(int parameters, boolean batched) {
+            this.parameters = parameters;
+            this.batched = batched;
+        }
     }
 
     // Prevents the instantiation of any CommandParser objects,
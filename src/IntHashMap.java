@@ -0,0 +1,160 @@
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive {@code int} keys to object values, using open
+ * addressing with linear probing. Unlike a {@code HashMap<Integer, V>} it
+ * does not box its keys or allocate an entry per mapping, so lookups by user
+ * ID touch only two arrays.
+ *
+ * Null values are not permitted; {@link #get(int)} returns null for a missing
+ * key.
+ *
+ * @param <V> the type of the mapped values
+ */
+final class IntHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Constructs an empty {@code IntHashMap}.
+     */
+    public IntHashMap() {
+        keys = new int[DEFAULT_CAPACITY];
+        values = new Object[DEFAULT_CAPACITY];
+        size = 0;
+    }
+
+    // Spreads the key's bits so that sequential IDs do not cluster
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Finds the slot holding the key, or the empty slot where it would go
+    private int indexOf(int key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (values[index] != null && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the value mapped to a key.
+     *
+     * @param key The key to look up
+     * @return the mapped value, or null if the key is not mapped
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[indexOf(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return values[indexOf(key)] != null;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous mapping.
+     *
+     * @param key   The key
+     * @param value The value, which must not be null
+     * @return the previously mapped value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int index = indexOf(key);
+        V previous = (V) values[index];
+        keys[index] = key;
+        values[index] = value;
+        if (previous == null && ++size > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the mapping for a key.
+     *
+     * @param key The key to remove
+     * @return the value that was mapped, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = indexOf(key);
+        V previous = (V) values[index];
+        if (previous == null) {
+            return null;
+        }
+        values[index] = null;
+        size--;
+
+        // Shift back later entries of the probe run so that none of them is cut
+        // off from its home slot by the gap
+        int mask = keys.length - 1;
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                values[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Copies the keys of the map into a new array, in no particular order.
+     *
+     * @return the mapped keys
+     */
+    public int[] keys() {
+        int[] mapped = new int[size];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                mapped[count++] = keys[i];
+            }
+        }
+        return mapped;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
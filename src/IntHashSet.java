@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+/**
+ * A set of primitive {@code int} values, using open addressing with linear
+ * probing. It stores its elements in a single {@code int[]}, without boxing
+ * them or allocating a node per element.
+ *
+ * {@link Integer#MIN_VALUE} marks free slots, so it cannot be stored; user IDs
+ * are never negative.
+ */
+final class IntHashSet {
+
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] slots;
+    private int size;
+
+    /**
+     * Constructs an empty {@code IntHashSet}.
+     */
+    public IntHashSet() {
+        slots = new int[DEFAULT_CAPACITY];
+        Arrays.fill(slots, FREE);
+        size = 0;
+    }
+
+    // Spreads the value's bits so that sequential IDs do not cluster
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Finds the slot holding the value, or the free slot where it would go
+    private int indexOf(int value) {
+        int mask = slots.length - 1;
+        int index = hash(value) & mask;
+        while (slots[index] != FREE && slots[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    public boolean contains(int value) {
+        return value != FREE && slots[indexOf(value)] == value;
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value The value to add
+     * @return true if the value was not already in the set
+     * @throws IllegalArgumentException if the value is {@link Integer#MIN_VALUE}
+     */
+    public boolean add(int value) {
+        if (value == FREE) {
+            throw new IllegalArgumentException("Cannot store " + value);
+        }
+        int index = indexOf(value);
+        if (slots[index] == value) {
+            return false;
+        }
+        slots[index] = value;
+        if (++size > slots.length * 3 / 4) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a value from the set.
+     *
+     * @param value The value to remove
+     * @return true if the value was in the set
+     */
+    public boolean remove(int value) {
+        if (value == FREE) {
+            return false;
+        }
+        int index = indexOf(value);
+        if (slots[index] != value) {
+            return false;
+        }
+        slots[index] = FREE;
+        size--;
+
+        // Shift back later values of the probe run so that none of them is cut
+        // off from its home slot by the gap
+        int mask = slots.length - 1;
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (slots[next] != FREE) {
+            int home = hash(slots[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                slots[gap] = slots[next];
+                slots[next] = FREE;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Copies the values in the set into a new array, in no particular order.
+     *
+     * @return the values in the set
+     */
+    public int[] toArray() {
+        int[] values = new int[size];
+        int count = 0;
+        for (int value : slots) {
+            if (value != FREE) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        int[] oldSlots = slots;
+        slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        for (int value : oldSlots) {
+            if (value != FREE) {
+                slots[indexOf(value)] = value;
+            }
+        }
+    }
+}
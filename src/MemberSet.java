@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * The user IDs of a {@link Channel}'s members. Most channels are small, so a
+ * {@code MemberSet} starts out as a sorted {@code int[]} searched by binary
+ * search, which costs four bytes per member and no per-member objects. Once a
+ * channel grows past {@link #SMALL_LIMIT} members it is promoted to an
+ * {@link IntHashSet}, and it is demoted back to an array when it shrinks to
+ * half that, so that a channel hovering around the limit does not convert on
+ * every join and leave.
+ */
+final class MemberSet {
+
+    // The most members kept in a sorted array
+    static final int SMALL_LIMIT = 16;
+
+    // Sorted members, used while large is null
+    private int[] small;
+    private int smallSize;
+    private IntHashSet large;
+
+    /**
+     * Constructs an empty {@code MemberSet}.
+     */
+    public MemberSet() {
+        small = new int[2];
+        smallSize = 0;
+        large = null;
+    }
+
+    public boolean contains(int userId) {
+        if (large != null) {
+            return large.contains(userId);
+        }
+        return Arrays.binarySearch(small, 0, smallSize, userId) >= 0;
+    }
+
+    /**
+     * Adds a user ID to the set.
+     *
+     * @param userId The ID to add
+     * @return true if the ID was not already in the set
+     */
+    public boolean add(int userId) {
+        if (large != null) {
+            return large.add(userId);
+        }
+        int index = Arrays.binarySearch(small, 0, smallSize, userId);
+        if (index >= 0) {
+            return false;
+        }
+        if (smallSize == SMALL_LIMIT) {
+            promote();
+            return large.add(userId);
+        }
+        int insertion = -index - 1;
+        if (smallSize == small.length) {
+            small = Arrays.copyOf(small, Math.min(SMALL_LIMIT, small.length * 2));
+        }
+        System.arraycopy(small, insertion, small, insertion + 1, smallSize - insertion);
+        small[insertion] = userId;
+        smallSize++;
+        return true;
+    }
+
+    /**
+     * Removes a user ID from the set.
+     *
+     * @param userId The ID to remove
+     * @return true if the ID was in the set
+     */
+    public boolean remove(int userId) {
+        if (large != null) {
+            if (!large.remove(userId)) {
+                return false;
+            }
+            if (large.size() <= SMALL_LIMIT / 2) {
+                demote();
+            }
+            return true;
+        }
+        int index = Arrays.binarySearch(small, 0, smallSize, userId);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(small, index + 1, small, index, smallSize - index - 1);
+        smallSize--;
+        return true;
+    }
+
+    public int size() {
+        return large != null ? large.size() : smallSize;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Copies the user IDs in the set into a new array. The IDs are sorted while
+     * the set is small, and in no particular order once it is large.
+     *
+     * @return the user IDs in the set
+     */
+    public int[] toArray() {
+        if (large != null) {
+            return large.toArray();
+        }
+        return Arrays.copyOf(small, smallSize);
+    }
+
+    private void promote() {
+        large = new IntHashSet();
+        for (int i = 0; i < smallSize; i++) {
+            large.add(small[i]);
+        }
+        small = null;
+        smallSize = 0;
+    }
+
+    private void demote() {
+        int[] members = large.toArray();
+        Arrays.sort(members);
+        small = Arrays.copyOf(members, SMALL_LIMIT);
+        smallSize = members.length;
+        large = null;
+    }
+}
@@ -0,0 +1,414 @@
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer
+ * thread, backed by a pre-allocated ring of slots. It is used as the model
+ * thread's task queue: connection threads offer tasks concurrently, and only
+ * the model thread takes them.
+ *
+ * Each slot carries a sequence number telling producers and the consumer whose
+ * turn it is (after Dmitry Vyukov's bounded queue), so enqueuing is a single
+ * compare-and-set on the tail and never allocates. How a thread waits for the
+ * queue to become non-empty or non-full is set by its {@link WaitStrategy}.
+ *
+ * Elements that must never wait for room, such as a client disconnecting, can
+ * be {@linkplain #force forced} in: when the ring is full they are kept in an
+ * unbounded overflow list behind it. While anything is in the overflow list,
+ * ordinary offers fail as if the ring were full, so elements still come out in
+ * the order they went in.
+ *
+ * Only one thread may ever call the consuming methods ({@code poll},
+ * {@code take}, {@code peek}, {@code drainTo}, {@code clear}, ...). Its
+ * iterator is weakly consistent, and cannot remove elements.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+final class MpscRingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * How a thread waits when it cannot make progress: the consumer on an empty
+     * queue, or a producer in {@link #put} on a full one.
+     */
+    enum WaitStrategy {
+        /**
+         * Spin on the CPU. Lowest latency, but burns a core while idle.
+         */
+        BUSY_SPIN,
+
+        /**
+         * Yield the CPU between checks.
+         */
+        YIELD,
+
+        /**
+         * Park the thread until it is woken, or briefly for producers.
+         */
+        PARK
+    }
+
+    // How long a producer parks between attempts on a full queue
+    private static final long PRODUCER_PARK_NANOS = 10_000;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private final WaitStrategy waitStrategy;
+    private final ConcurrentLinkedQueue<E> overflow;
+    private final AtomicInteger overflowSize;
+
+    private volatile long head;
+    private volatile Thread parkedConsumer;
+
+    /**
+     * Constructs an empty {@code MpscRingBuffer}.
+     *
+     * @param capacity     The minimum number of elements the queue can hold; it is
+     *                     rounded up to a power of two
+     * @param waitStrategy How waiting threads wait
+     * @throws IllegalArgumentException if {@code capacity} is not positive or too
+     *                                  large
+     */
+    public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.capacity = ceilingPowerOfTwo(capacity);
+        mask = this.capacity - 1;
+        slots = new AtomicReferenceArray<>(this.capacity);
+        sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        tail = new AtomicLong(0);
+        head = 0;
+        this.waitStrategy = waitStrategy;
+        overflow = new ConcurrentLinkedQueue<>();
+        overflowSize = new AtomicInteger();
+        parkedConsumer = null;
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        int power = Integer.highestOneBit(n);
+        return power == n ? n : power << 1;
+    }
+
+    // ==========================================================================
+    // Producer methods
+    // ==========================================================================
+
+    /**
+     * Inserts an element if there is room for it, without waiting.
+     *
+     * @param e The element to add
+     * @return true if the element was added, false if the queue is full
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (overflowSize.get() > 0) {
+            return false;
+        }
+        return offerToRing(e);
+    }
+
+    /**
+     * Inserts an element without ever waiting: into the ring if there is room,
+     * and otherwise into the overflow list behind it.
+     *
+     * @param e The element to add
+     */
+    public void force(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (overflowSize.get() == 0 && offerToRing(e)) {
+            return;
+        }
+        overflowSize.incrementAndGet();
+        overflow.add(e);
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private boolean offerToRing(E e) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long turn = sequences.get(index) - t;
+            if (turn == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots.set(index, e);
+                    // Publishing the sequence hands the slot to the consumer
+                    sequences.set(index, t + 1);
+                    Thread consumer = parkedConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (turn < 0) {
+                // The consumer has not freed this slot yet
+                return false;
+            }
+            // Otherwise another producer claimed the slot first; try the next one
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            idleProducer();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            idleProducer();
+        }
+        return true;
+    }
+
+    private void idleProducer() {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            Thread.onSpinWait();
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        default:
+            LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+            break;
+        }
+    }
+
+    // ==========================================================================
+    // Consumer methods
+    // ==========================================================================
+
+    @Override
+    public E poll() {
+        E e = pollRing();
+        if (e == null && overflowSize.get() > 0) {
+            e = overflow.poll();
+            if (e != null) {
+                overflowSize.decrementAndGet();
+            }
+        }
+        return e;
+    }
+
+    private E pollRing() {
+        long h = head;
+        int index = (int) h & mask;
+        if (sequences.get(index) != h + 1) {
+            return null;
+        }
+        E e = slots.get(index);
+        slots.lazySet(index, null);
+        // Hand the slot back to producers for its next lap around the ring
+        sequences.set(index, h + capacity);
+        head = h + 1;
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        long h = head;
+        int index = (int) h & mask;
+        if (sequences.get(index) != h + 1) {
+            return overflowSize.get() > 0 ? overflow.peek() : null;
+        }
+        return slots.get(index);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            awaitElement(Long.MAX_VALUE);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            awaitElement(remaining);
+        }
+        return e;
+    }
+
+    /**
+     * Waits once, according to the wait strategy, for an element to be
+     * published.
+     */
+    private void awaitElement(long maxNanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            Thread.onSpinWait();
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        default:
+            parkedConsumer = Thread.currentThread();
+            // Producers check parkedConsumer after publishing, so re-check before
+            // parking to avoid missing their wake-up
+            if (peek() == null) {
+                if (maxNanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, maxNanos);
+                }
+            }
+            parkedConsumer = null;
+            break;
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    // ==========================================================================
+    // Size queries
+    // ==========================================================================
+
+    /**
+     * Gets the number of elements in the queue. While producers are enqueuing
+     * this is only an estimate.
+     *
+     * @return the number of elements in the queue
+     */
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(capacity, size)) + overflowSize.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, capacity - size());
+    }
+
+    /**
+     * Returns an iterator over the elements in the queue, from oldest to newest.
+     * It is weakly consistent: it may be used while producers and the consumer
+     * carry on, and sees the elements queued when it was created that have not
+     * been taken by the time it reaches them, and perhaps some queued later. Like
+     * the iterators of the concurrent collections, it reaches each element one
+     * step ahead of returning it. It
+     * does not support {@link Iterator#remove()}, since elements can only be
+     * removed by the consumer, in order.
+     *
+     * @return an iterator over the queued elements
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long index = head;
+            private final long end = tail.get();
+            private Iterator<E> overflowElements = null;
+            private E next = advance();
+
+            private E advance() {
+                index = Math.max(index, head);
+                while (index < end) {
+                    long turn = index++;
+                    int slot = (int) turn & mask;
+                    E e = slots.get(slot);
+                    // The element is still queued if its slot has not moved on
+                    if (e != null && sequences.get(slot) == turn + 1) {
+                        return e;
+                    }
+                }
+                if (overflowElements == null) {
+                    overflowElements = overflow.iterator();
+                }
+                return overflowElements.hasNext() ? overflowElements.next() : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                E e = next;
+                next = advance();
+                return e;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MpscRingBuffer[size=%d, capacity=%d, overflow=%d, %s]", size(), capacity,
+                overflowSize.get(), waitStrategy);
+    }
+}
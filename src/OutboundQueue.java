@@ -0,0 +1,275 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@code OutboundQueue} holds the encoded responses waiting to be written
+ * to one client. The model thread only ever enqueues into it, and the
+ * connection's I/O thread drains it, so a client that reads slowly cannot
+ * stall command processing for everyone else.
+ *
+ * The queue is bounded by byte count. Once it reaches its high watermark the
+ * configured {@link Policy} decides what happens to further responses, until
+ * the I/O thread has drained it back down to its low watermark. The watermark
+ * is checked once per {@link #offer}, before any of its responses are queued,
+ * so the responses of one batch are never split, and a thread never waits on
+ * responses that it has queued itself but not yet handed to the I/O thread.
+ */
+final class OutboundQueue {
+
+    /**
+     * What to do with responses for a client whose queue has reached its high
+     * watermark.
+     */
+    enum Policy {
+        /**
+         * Discard responses until the queue drains to its low watermark.
+         */
+        DROP,
+
+        /**
+         * Disconnect the client, exactly as if it had closed its connection.
+         */
+        DISCONNECT,
+
+        /**
+         * Make the enqueuing thread wait until the queue drains to its low
+         * watermark.
+         */
+        BLOCK
+    }
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final Policy policy;
+
+    private final Lock lock;
+    private final Condition drained;
+    private final Deque<ByteBuffer> buffers;
+    private int queuedBytes;
+    private boolean dropping;
+    private boolean closed;
+    private long droppedCount;
+
+    /**
+     * Constructs an empty {@code OutboundQueue}.
+     *
+     * @param highWatermark The queued byte count at which {@code policy} applies
+     * @param lowWatermark  The queued byte count below which the queue accepts
+     *                      responses normally again
+     * @param policy        What to do with responses beyond the high watermark
+     * @throws IllegalArgumentException if the watermarks are out of order
+     */
+    public OutboundQueue(int highWatermark, int lowWatermark, Policy policy) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Invalid watermarks");
+        }
+        if (policy == null) {
+            throw new NullPointerException();
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        lock = new ReentrantLock();
+        drained = lock.newCondition();
+        buffers = new ArrayDeque<>();
+        queuedBytes = 0;
+        dropping = false;
+        closed = false;
+        droppedCount = 0;
+    }
+
+    /**
+     * Enqueues encoded responses, in order, applying the policy if the queue is
+     * already at its high watermark. Responses for a closed queue are silently
+     * discarded.
+     *
+     * The caller must make sure the queue is being drained after every offer:
+     * under {@link Policy#BLOCK} this waits for responses queued by earlier
+     * offers to be written.
+     *
+     * @param responses The bytes to write, each from its position to its limit.
+     *                  The buffers themselves are not modified.
+     * @return false if the client is over budget and should be disconnected,
+     *         otherwise true
+     */
+    public boolean offer(List<ByteBuffer> responses) {
+        lock.lock();
+        try {
+            if (!closed && queuedBytes >= highWatermark) {
+                switch (policy) {
+                case DROP:
+                    dropping = true;
+                    break;
+                case DISCONNECT:
+                    return false;
+                case BLOCK:
+                    awaitLowWatermark();
+                    break;
+                default:
+                    break;
+                }
+            }
+            if (closed) {
+                return true;
+            }
+            if (dropping) {
+                droppedCount += responses.size();
+                return true;
+            }
+            for (ByteBuffer buffer : responses) {
+                append(buffer);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enqueues an encoded response only if the queue is below its high
+     * watermark, without ever waiting, dropping or disconnecting. This is safe
+     * to call from the thread that drains the queue.
+     *
+     * @param buffer The bytes to write, from its position to its limit. The
+     *               buffer itself is not modified.
+     * @return true if the response was queued
+     */
+    public boolean offerIfRoom(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            if (closed || dropping || queuedBytes >= highWatermark) {
+                return false;
+            }
+            append(buffer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(ByteBuffer buffer) {
+        // Queue a view starting at zero, so its size is always its limit
+        ByteBuffer view = buffer.slice();
+        buffers.add(view);
+        queuedBytes += view.limit();
+    }
+
+    private void awaitLowWatermark() {
+        boolean interrupted = false;
+        while (!closed && queuedBytes > lowWatermark) {
+            try {
+                drained.await();
+            } catch (InterruptedException ix) {
+                // Usually the server shutting down; give up on this response
+                interrupted = true;
+                dropping = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the response at the head of the queue without removing it. Only the
+     * connection's I/O thread should drain the queue, advancing the returned
+     * buffer as it writes and calling {@link #remove()} once it is empty.
+     *
+     * @return the oldest queued response, or null if the queue is empty
+     */
+    public ByteBuffer peek() {
+        lock.lock();
+        try {
+            return buffers.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the oldest queued responses into {@code batch}, without removing
+     * them, so that they can be written with a single gathering write.
+     *
+     * @param batch The array to fill, from index zero
+     * @return the number of responses copied, at most {@code batch.length}
+     */
+    public int peek(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (ByteBuffer buffer : buffers) {
+                if (count == batch.length) {
+                    break;
+                }
+                batch[count++] = buffer;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the response at the head of the queue once it has been written.
+     */
+    public void remove() {
+        lock.lock();
+        try {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                queuedBytes -= buffer.limit();
+            }
+            if (queuedBytes <= lowWatermark) {
+                dropping = false;
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything queued and wakes any thread blocked in
+     * {@link #offer}. Later responses are discarded.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            buffers.clear();
+            queuedBytes = 0;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return buffers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of responses discarded by the {@link Policy#DROP} policy.
+     *
+     * @return the number of dropped responses
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
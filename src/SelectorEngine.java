@@ -0,0 +1,417 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@code SelectorEngine} serves clients with non-blocking socket channels
+ * instead of a thread per client. The thread that calls {@link #run()} accepts
+ * new connections and hands them round-robin to a fixed set of {@link IoLoop}
+ * threads, each of which owns a {@link Selector}. An I/O thread splits the
+ * bytes it reads into lines for {@link ServerBackend#received}, and drains the
+ * client's {@link OutboundQueue} whenever its socket can take more. Queued
+ * responses are written with a single gathering write, optionally after
+ * waiting out a short coalescing window so that more of them can be batched.
+ *
+ * The engine only talks to the backend through its engine callbacks, so the
+ * model sees exactly the same {@code Registration}, {@code Request} and
+ * {@code Disconnection} tasks as with blocking connections.
+ */
+final class SelectorEngine implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private final ServerBackend backend;
+    private final boolean tcpNoDelay;
+    private final long coalesceNanos;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoLoop[] loops;
+
+    private volatile boolean open;
+
+    /**
+     * Binds the listening channel and starts the I/O threads.
+     *
+     * @param backend The backend to report connections and requests to
+     * @param config  The settings to listen and serve clients with
+     * @throws IOException if the listening channel cannot be opened
+     */
+    public SelectorEngine(ServerBackend backend, ServerConfig config) throws IOException {
+        this.backend = backend;
+        tcpNoDelay = config.isTcpNoDelay();
+        coalesceNanos = TimeUnit.MILLISECONDS.toNanos(config.getCoalesceMillis());
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException iox) {
+            serverChannel.close();
+            throw iox;
+        }
+        open = true;
+
+        loops = new IoLoop[config.getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+            Thread thread = new Thread(loops[i], "I/O thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Accepts connections until the engine is closed.
+     */
+    @Override
+    public void run() {
+        int next = 0;
+        try {
+            while (open && backend.isAccepting()) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (ClosedSelectorException csx) {
+            // Closed by close(); nothing to do
+        } catch (IOException iox) {
+            if (open) {
+                iox.printStackTrace();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts down the I/O threads. Connections
+     * still open are closed by the backend.
+     */
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            serverChannel.close();
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+        acceptSelector.wakeup();
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    // ==========================================================================
+    // IoLoop
+    // ==========================================================================
+
+    /**
+     * A single I/O thread, reading from and writing to the channels registered
+     * with its {@link Selector}.
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<ChannelConnection> pendingRegistrations;
+        private final Queue<ChannelConnection> pendingFlushes;
+        private final Queue<ChannelConnection> delayedFlushes;
+        private final ByteBuffer readBuffer;
+        private final ByteBuffer[] writeBatch;
+
+        public IoLoop() throws IOException {
+            selector = Selector.open();
+            pendingRegistrations = new ConcurrentLinkedQueue<>();
+            pendingFlushes = new ConcurrentLinkedQueue<>();
+            delayedFlushes = new ArrayDeque<>();
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+        }
+
+        /**
+         * Registers a newly accepted channel with this loop. Called on the
+         * accepting thread.
+         */
+        void register(SocketChannel channel) {
+            ChannelConnection connection = new ChannelConnection(this, channel);
+            connection.userId = backend.connected(connection);
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks this loop to write out a connection's queued responses. Called on
+         * the model thread.
+         */
+        void scheduleFlush(ChannelConnection connection) {
+            connection.flushDue = System.nanoTime() + coalesceNanos;
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    ChannelConnection nextFlush = delayedFlushes.peek();
+                    if (nextFlush == null) {
+                        selector.select();
+                    } else {
+                        long delay = TimeUnit.NANOSECONDS.toMillis(nextFlush.flushDue - System.nanoTime());
+                        selector.select(Math.max(1, delay));
+                    }
+                    registerPending();
+                    flushPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelConnection connection = (ChannelConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (CancelledKeyException ckx) {
+                            // A model thread disconnected the client meanwhile
+                        } catch (IOException iox) {
+                            connection.fail(iox);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException csx) {
+                // Closed during shutdown; nothing to do
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            ChannelConnection connection;
+            while ((connection = pendingRegistrations.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    // Responses may have been queued before the key existed
+                    connection.flush();
+                } catch (IOException iox) {
+                    connection.fail(iox);
+                }
+            }
+        }
+
+        /**
+         * Flushes the connections whose coalescing window has passed. Every
+         * connection waits for the same window, so they come due in the order they
+         * were scheduled.
+         */
+        private void flushPending() {
+            ChannelConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                delayedFlushes.add(connection);
+            }
+            long now = System.nanoTime();
+            while ((connection = delayedFlushes.peek()) != null && connection.flushDue - now <= 0) {
+                delayedFlushes.poll();
+                try {
+                    connection.flush();
+                } catch (IOException iox) {
+                    connection.fail(iox);
+                }
+            }
+        }
+    }
+
+    // ==========================================================================
+    // ChannelConnection
+    // ==========================================================================
+
+    /**
+     * The state of one client: its partially read line, and the responses that
+     * have been queued but not yet written.
+     */
+    private final class ChannelConnection implements ServerBackend.Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final ByteArrayOutputStream partialLine;
+        private final OutboundQueue outbound;
+        private final AtomicBoolean flushScheduled;
+        private final AtomicBoolean closed;
+        private volatile int userId;
+        private long flushDue;
+        private SelectionKey key;
+        private boolean skipLineFeed;
+
+        public ChannelConnection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            partialLine = new ByteArrayOutputStream();
+            outbound = backend.newOutboundQueue();
+            flushScheduled = new AtomicBoolean(false);
+            closed = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void send(List<ByteBuffer> responses) throws IOException {
+            if (closed.get()) {
+                return;
+            }
+            if (!outbound.offer(responses)) {
+                ServerLog.get().warn("User %d is too slow to keep up; disconnecting", userId);
+                disconnect();
+                return;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+
+        @Override
+        public boolean sendIfRoom(ByteBuffer response) {
+            if (closed.get() || !outbound.offerIfRoom(response)) {
+                return false;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+            return true;
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return outbound.getDroppedCount();
+        }
+
+        /**
+         * Reads whatever is available and reports each complete line. Lines end at
+         * {@code \n}, {@code \r} or {@code \r\n}, as with
+         * {@link java.io.BufferedReader#readLine()}.
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            int count;
+            while ((count = channel.read(buffer)) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (skipLineFeed) {
+                        skipLineFeed = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        skipLineFeed = b == '\r';
+                        String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+                        partialLine.reset();
+                        backend.received(userId, line);
+                    } else {
+                        partialLine.write(b);
+                    }
+                }
+                buffer.clear();
+            }
+            if (count < 0) {
+                disconnect();
+            }
+        }
+
+        /**
+         * Writes queued responses until they run out or the socket is full, and
+         * only asks the selector for write readiness in the latter case. Each
+         * write gathers as many queued responses as fit in the loop's batch.
+         */
+        void flush() throws IOException {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            ByteBuffer[] batch = loop.writeBatch;
+            int count;
+            try {
+                while ((count = outbound.peek(batch)) > 0) {
+                    channel.write(batch, 0, count);
+                    int written = 0;
+                    while (written < count && !batch[written].hasRemaining()) {
+                        outbound.remove();
+                        written++;
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    if (written < count) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException ckx) {
+                // A model thread disconnected the client while it was written to
+                Arrays.fill(batch, null);
+            }
+        }
+
+        void fail(IOException iox) {
+            if (!closed.get()) {
+                iox.printStackTrace();
+            }
+            disconnect();
+        }
+
+        private void disconnect() {
+            if (closed.compareAndSet(false, true)) {
+                outbound.close();
+                closeChannel();
+                backend.disconnected(userId);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.set(true);
+            outbound.close();
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,171 +1,817 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The {@code ServerBackend} handles networking and communication with clients,
  * and is responsible for managing the server state and executing tasks. To run
  * the server, you should see the {@link ServerMain} class.
  *
- * You do not need to modify this file.
+ * Clients are served by one of the engines listed in
+ * {@link ServerConfig.Engine}: either a blocking {@link ConnectionWorker} per
+ * client (on a platform or a virtual thread), or a {@link SelectorEngine} that
+ * multiplexes every client over a few I/O threads. Both engines feed the same
+ * task queue through {@link #connected}, {@link #received} and
+ * {@link #disconnected}.
+ *
+ * The model thread never writes to a socket itself: each {@link Connection}
+ * owns a bounded {@link OutboundQueue} that the model thread only appends to,
+ * and that the engine's I/O threads drain. The model thread takes tasks off the
+ * queue in batches of up to {@link ServerConfig#getModelBatchSize()}, and hands
+ * each connection all of its responses from a batch at once.
+ *
+ * The model can be split into several {@link ModelShard}s, each with its own
+ * model thread, task queue and {@link ServerModel}. Channels are partitioned
+ * between the shards by the hash of their name, so commands on different
+ * channels run in parallel. Every shard's model keeps a full copy of the
+ * registered users; the tasks that change them (connecting, disconnecting, NICK
+ * and EXT) are {@link GlobalTask}s, run on every shard while all shards wait.
+ * So are commands on several channels held by different shards; a command on
+ * several channels of one shard runs on that shard alone.
+ *
+ * When a shard falls behind, by having more tasks queued than
+ * {@link ServerConfig#getShedQueueDepth()} or by taking requests that have
+ * waited longer than {@link ServerConfig#getShedLagMillis()}, messages for its
+ * channels are turned away on the connection thread with
+ * {@link ServerResponse#SERVER_BUSY} instead of being queued. Everything else,
+ * including connecting and disconnecting, is still admitted.
  */
 final class ServerBackend implements Runnable {
 
-    // The ServerModel is NOT thread-safe; it should only be touched on the
-    // model thread after being initialized.
-    private final ServerModel model;
+    private static final int WRITE_BUFFER_SIZE = 16384;
 
-    private final BlockingQueue<Task> taskQueue;
+    // How long a connection thread waits between checks for room in the queues
+    private static final long ROOM_POLL_NANOS = 100_000;
+
+    // Each connection thread tokenizes the lines it receives with its own Tokens
+    private static final ThreadLocal<CommandParser.Tokens> TOKENS = new ThreadLocal<CommandParser.Tokens>() {
+        @Override
+        protected CommandParser.Tokens initialValue() {
+            return new CommandParser.Tokens();
+        }
+    };
+
+    private final ServerConfig config;
+    private final ServerStats stats;
+
+    // Each shard's ServerModel is NOT thread-safe; it should only be touched on
+    // the shard's model thread after being initialized.
+    private final ModelShard[] shards;
+    private final Object globalTaskLock;
 
     private volatile ServerSocket serverSocket;
-    private final Map<Integer, Socket> openSockets;
+    private volatile SelectorEngine selectorEngine;
+    private final Map<Integer, Connection> openConnections;
+    // Each connected user's nickname as of the last task that could change it,
+    // so that connection threads can address a SERVER_BUSY response
+    private final Map<Integer, String> nicknames;
+    private final boolean shedding;
+    // Whether connection threads wait for room in a full task queue; selector
+    // I/O threads never do, as a model thread may be waiting for them
+    private final boolean mayWaitForRoom;
 
     private volatile boolean running;
-    private volatile Thread modelThread;
+    private int nextId;
 
     public ServerBackend(ServerModel model) {
-        if (model == null) {
+        this(model, new ServerConfig());
+    }
+
+    /**
+     * Constructs a {@code ServerBackend}. The given model becomes the model of the
+     * first shard; any further shards get fresh models from
+     * {@link ServerConfig#newModel()}.
+     *
+     * @param model  The model for the first shard
+     * @param config The settings to run with
+     */
+    public ServerBackend(ServerModel model, ServerConfig config) {
+        if (model == null || config == null) {
             throw new NullPointerException();
         }
-        this.model = model;
-        taskQueue = new LinkedBlockingQueue<>();
+        this.config = config;
+        stats = new ServerStats();
+        shards = new ModelShard[config.getModelShards()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ModelShard(i, i == 0 ? model : config.newModel());
+        }
+        globalTaskLock = new Object();
         serverSocket = null;
-        openSockets = Collections.synchronizedMap(new HashMap<Integer, Socket>());
+        selectorEngine = null;
+        openConnections = new ConcurrentHashMap<>();
+        nicknames = new ConcurrentHashMap<>();
+        shedding = config.getShedQueueDepth() > 0 || config.getShedLagMillis() > 0;
+        mayWaitForRoom = config.getFullQueuePolicy() == ServerConfig.FullQueuePolicy.BLOCK
+                && config.getEngine() != ServerConfig.Engine.SELECTOR;
         running = false;
-        modelThread = null;
+        nextId = 0;
     }
 
     public boolean isRunning() {
         return running;
     }
 
+    public ServerStats getStats() {
+        return stats;
+    }
+
     @Override
     public void run() {
         running = true;
+        ServerLog.install(new ServerLog(config.getLogSink(), config.getLogLevel(), config.getTraceSampleRate(),
+                config.getLogCapacity(), config.isLogNonBlocking()));
 
-        // Attempt to open the ServerSocket; abort on failure
+        // Attempt to open the listening socket; abort on failure
         try {
-            serverSocket = new ServerSocket(21212);
+            if (config.getEngine() == ServerConfig.Engine.SELECTOR) {
+                selectorEngine = new SelectorEngine(this, config);
+            } else {
+                serverSocket = new ServerSocket(config.getPort());
+            }
         } catch (IOException iox) {
             iox.printStackTrace();
-            running = false;
+            halt();
             serverSocket = null;
+            selectorEngine = null;
         }
 
-        // Start the model thread
-        modelThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (running || !taskQueue.isEmpty()) {
-                    Task task;
-                    try {
-                        task = taskQueue.take();
-                    } catch (InterruptedException ix) {
-                        continue;
-                    }
-                    try {
-                        dispatchBroadcast(task.getBroadcast());
-                    } catch (RuntimeException rx) {
-                        rx.printStackTrace();
-                    }
-                }
+        // Start the model threads
+        for (ModelShard shard : shards) {
+            String name = shards.length == 1 ? "Model thread" : "Model thread " + shard.index;
+            shard.thread = new Thread(shard, name);
+            shard.thread.start();
+        }
 
+        // Await new connections on the current thread
+        try {
+            if (selectorEngine != null) {
+                selectorEngine.run();
+            } else if (serverSocket != null) {
+                acceptBlocking();
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        } finally {
+            halt();
+            closeListener();
+            serverSocket = null;
+
+            Iterator<Map.Entry<Integer, Connection>> iterator = openConnections.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Connection> entry = iterator.next();
+                Connection connection = entry.getValue();
+                recordDropped(entry.getKey(), connection);
                 try {
-                    if (serverSocket != null && !serverSocket.isClosed()) {
-                        serverSocket.close();
-                    }
+                    connection.close();
                 } catch (IOException iox) {
                     iox.printStackTrace();
+                } finally {
+                    iterator.remove();
                 }
             }
-        }, "Model thread");
-        modelThread.start();
+        }
+    }
 
-        // Await new connections on the current thread
-        ExecutorService workerPool = Executors.newCachedThreadPool();
+    /**
+     * Accepts clients on the {@link ServerSocket}, serving each of them with a
+     * dedicated {@link ConnectionWorker}.
+     */
+    private void acceptBlocking() throws IOException {
+        ExecutorService workerPool = newWorkerPool();
+        ScheduledExecutorService flushTimer = null;
+        if (config.getCoalesceMillis() > 0) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor();
+        }
         try {
-            int nextId = 0;
             while (running && !serverSocket.isClosed()) {
-                int userId = nextId++;
                 Socket clientSocket = serverSocket.accept();
-                openSockets.put(userId, clientSocket);
-                taskQueue.add(new Registration(userId));
+                SocketConnection connection;
+                try {
+                    connection = new SocketConnection(clientSocket, workerPool, flushTimer);
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                    clientSocket.close();
+                    continue;
+                }
+                int userId = connected(connection);
+                connection.userId = userId;
                 workerPool.execute(new ConnectionWorker(userId, clientSocket));
             }
-        } catch (IOException iox) {
-            iox.printStackTrace();
         } finally {
-            running = false;
             workerPool.shutdown();
+            if (flushTimer != null) {
+                flushTimer.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Creates the executor that runs {@link ConnectionWorker}s, and drains the
+     * outbound queues of their connections. With the
+     * {@link ServerConfig.Engine#VIRTUAL} engine every worker gets its own virtual
+     * thread; virtual threads only exist on Java 21 and later, so they are looked
+     * up reflectively and we fall back to platform threads without them.
+     */
+    private ExecutorService newWorkerPool() {
+        if (config.getEngine() == ServerConfig.Engine.VIRTUAL) {
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-            } catch (IOException iox) {
-                iox.printStackTrace();
-            } finally {
-                serverSocket = null;
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException rox) {
+                ServerLog.get().warn("Virtual threads are not supported by this JVM; using platform threads");
             }
+        }
+        return Executors.newCachedThreadPool();
+    }
 
-            synchronized (openSockets) {
-                Iterator<Socket> iterator = openSockets.values().iterator();
-                while (iterator.hasNext()) {
-                    Socket clientSocket = iterator.next();
-                    try {
-                        clientSocket.close();
-                    } catch (IOException iox) {
-                        iox.printStackTrace();
-                    } finally {
-                        iterator.remove();
-                    }
+    public void stop() {
+        halt();
+        closeListener();
+        for (ModelShard shard : shards) {
+            if (shard.thread != null) {
+                shard.thread.interrupt();
+            }
+        }
+    }
+
+    // helper: stop running. No global task is being queued meanwhile, so a
+    // shard that sees the server has stopped has already been given every
+    // global task the others will wait for it to reach
+    private void halt() {
+        synchronized (globalTaskLock) {
+            running = false;
+        }
+    }
+
+    private void closeListener() {
+        try {
+            ServerSocket socket = serverSocket;
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+        SelectorEngine engine = selectorEngine;
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    // ==========================================================================
+    // Engine callbacks
+    // ==========================================================================
+
+    /**
+     * Called by an engine when a client connects. Assigns the client a user ID and
+     * queues its {@link Registration}.
+     *
+     * @param connection The engine's handle for writing to the client
+     * @return The user ID assigned to the client
+     */
+    synchronized int connected(Connection connection) {
+        int userId = nextId++;
+        openConnections.put(userId, connection);
+        enqueue(new Registration(userId), true);
+        return userId;
+    }
+
+    /**
+     * Called by an engine for every line of text received from a client. Parses
+     * the line on the calling connection thread, so that the model thread only
+     * runs it, and queues it as a {@link Request}. Malformed lines are logged
+     * and dropped, and messages are shed while their shard is falling behind.
+     *
+     * @param userId The ID of the client that sent the line
+     * @param line   The line, without its terminator
+     */
+    void received(int userId, String line) {
+        ServerLog log = ServerLog.get();
+        if (log.isEnabled(ServerLog.Level.TRACE)) {
+            log.trace("Request received from user %d: \"%s\"", userId, line);
+        }
+        String payload;
+        if (line.startsWith(":")) {
+            int index = line.indexOf(' ');
+            payload = line.substring(index + 1);
+        } else {
+            payload = line;
+        }
+        CommandParser.Tokens tokens = TOKENS.get();
+        CommandParser.Result result = tokens.tokenize(payload);
+        if (result != CommandParser.Result.OK) {
+            log.warn("Ignoring malformed command from user %d (%s): \"%s\"", userId, result, payload);
+            return;
+        }
+        // The sender's nickname is bound on the model thread, where it is known
+        Command command = tokens.toCommand(userId, null);
+        Request request = new Request(command, shards.length);
+        if (shedding && isSheddable(command) && isOverloaded(request)) {
+            stats.recordShedRequest();
+            if (log.isEnabled(ServerLog.Level.TRACE)) {
+                log.trace("Request from user %d shed; the server is busy", userId);
+            }
+            busy(userId);
+            return;
+        }
+        if (!enqueue(request, false)) {
+            // The client may send it again once the server has caught up
+            log.warn("Task queue full; request from user %d rejected", userId);
+            busy(userId);
+        }
+    }
+
+    /**
+     * Determines whether a command may be turned away while the model is behind.
+     * Only messages are: they change nothing but what the recipients see, and
+     * are the bulk of the load.
+     */
+    private static boolean isSheddable(Command command) {
+        return command instanceof MessageCommand
+                || command instanceof BatchCommand && ((BatchCommand) command).getVerb().equals("MESG");
+    }
+
+    /**
+     * Determines whether the shard a request would run on is too far behind to
+     * take it. A batch across several shards may wait on any of them.
+     */
+    private boolean isOverloaded(Request request) {
+        if (request.getChannel() != null) {
+            return shards[shardOf(request.getChannel(), shards.length)].isOverloaded();
+        }
+        for (ModelShard shard : shards) {
+            if (shard.isOverloaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells a user that their request was turned away because the server is
+     * busy, unless they are too far behind to be told or are not registered
+     * yet. The response is sent straight away, so it may arrive ahead of the
+     * responses to requests still queued.
+     *
+     * @param userId The ID of the user who sent the request
+     */
+    private void busy(int userId) {
+        String nickname = nicknames.get(userId);
+        Connection connection = openConnections.get(userId);
+        if (nickname != null && connection != null) {
+            connection.sendIfRoom(encode(Broadcast.errorResponse(nickname, ServerResponse.SERVER_BUSY)));
+        }
+    }
+
+    /**
+     * Remembers a user's nickname after a task that may have changed it, or
+     * forgets it once the user is deregistered. Only called on the first shard's
+     * model thread.
+     *
+     * @param task  The task just executed
+     * @param model The first shard's model
+     */
+    private void rememberNickname(Task task, ServerModel model) {
+        String nickname = model.getNickname(task.getUserId());
+        if (nickname == null) {
+            nicknames.remove(task.getUserId());
+        } else {
+            nicknames.put(task.getUserId(), nickname);
+        }
+    }
+
+    /**
+     * Called by an engine when a client's connection is closed or fails, or when
+     * the client falls too far behind under {@link OutboundQueue.Policy#DISCONNECT}.
+     * Forgets the connection and queues the client's {@link Disconnection}; only
+     * the first call for a connection has any effect.
+     *
+     * @param userId The ID of the client that disconnected
+     */
+    void disconnected(int userId) {
+        Connection connection = openConnections.remove(userId);
+        if (connection != null) {
+            recordDropped(userId, connection);
+            enqueue(new Disconnection(userId), true);
+        }
+    }
+
+    // Counts the responses a closing connection discarded under Policy.DROP
+    private void recordDropped(int userId, Connection connection) {
+        long dropped = connection.getDroppedCount();
+        if (dropped > 0) {
+            stats.recordDroppedResponses(dropped);
+            ServerLog.get().warn("User %d was too slow to keep up, and missed %d responses", userId, dropped);
+        }
+    }
+
+    /**
+     * Adds a task to the queue of the shard it belongs to, applying the
+     * configured {@link ServerConfig.FullQueuePolicy} if the queue is full.
+     * Registrations, disconnections and NICK requests are queued on every shard
+     * as a {@link GlobalTask}.
+     *
+     * Essential tasks are forced into the queue without ever waiting, since
+     * they may come from a model thread, which is the only one that can make
+     * room, or from a selector I/O thread, which a model thread may be waiting
+     * on. Other tasks wait for room only under
+     * {@link ServerConfig.FullQueuePolicy#BLOCK}, and only on connection threads
+     * that may block; otherwise they are rejected.
+     *
+     * @param task      The task to queue
+     * @param essential Whether the task must not be rejected, because it tracks a
+     *                  client connecting or disconnecting
+     * Once the server has stopped, global tasks are no longer queued, since
+     * shards that have finished could never reach them.
+     *
+     * @return false if the task was rejected
+     */
+    private boolean enqueue(Task task, boolean essential) {
+        if (shards.length == 1) {
+            return enqueue(shards[0], task, essential);
+        } else if (task.getChannel() != null) {
+            return enqueue(shards[shardOf(task.getChannel(), shards.length)], task, essential);
+        } else if (task.isGlobal()) {
+            if (!essential && !awaitRoom()) {
+                stats.recordRejectedTask();
+                return false;
+            }
+            // Queue global tasks on every shard in the same order, or two shards
+            // could each wait for the other to reach a different one. Forcing
+            // them in never waits, so the lock is only held briefly.
+            synchronized (globalTaskLock) {
+                if (!running) {
+                    return false;
+                }
+                GlobalTask globalTask = new GlobalTask(task);
+                for (ModelShard shard : shards) {
+                    shard.force(globalTask);
                 }
             }
+            return true;
+        } else {
+            return enqueue(shards[0], task, essential);
         }
     }
 
-    public void stop() {
-        running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
+    /**
+     * Finds the shard that holds a channel.
+     *
+     * @param channel    The channel's name
+     * @param shardCount The number of shards
+     * @return the index of the channel's shard
+     */
+    static int shardOf(String channel, int shardCount) {
+        return Math.floorMod(channel.hashCode(), shardCount);
+    }
+
+    private boolean enqueue(ModelShard shard, Task task, boolean essential) {
+        if (essential) {
+            shard.force(task);
+            return true;
+        }
+        if (mayWaitForRoom) {
             try {
-                serverSocket.close();
-            } catch (IOException iox) {
-                iox.printStackTrace();
+                shard.queue.put(task);
+                return true;
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
             }
+        } else if (shard.queue.offer(task)) {
+            return true;
         }
-        if (modelThread != null) {
-            modelThread.interrupt();
+        stats.recordRejectedTask();
+        return false;
+    }
+
+    /**
+     * Waits until every shard's queue has room, if the calling thread may wait
+     * for it.
+     *
+     * @return false if some queue is full and the caller may not wait
+     */
+    private boolean awaitRoom() {
+        for (ModelShard shard : shards) {
+            while (shard.queue.remainingCapacity() == 0) {
+                if (!running || !mayWaitForRoom || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, ROOM_POLL_NANOS);
+            }
         }
+        return true;
+    }
+
+    /**
+     * Creates the outbound queue for a new connection from the configured limits.
+     *
+     * @return an empty {@link OutboundQueue}
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundHighWatermark(), config.getOutboundLowWatermark(),
+                config.getSlowConsumerPolicy());
+    }
+
+    /**
+     * Encodes a response line as it is sent to clients.
+     *
+     * @param line The response line, without a terminator
+     * @return a read-only buffer holding the encoded line and its terminator
+     */
+    static ByteBuffer encode(String line) {
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    boolean isAccepting() {
+        return running;
     }
 
     // ==========================================================================
     // Broadcast dispatch
     // ==========================================================================
 
-    private void dispatchBroadcast(Broadcast broadcast) {
-        if (broadcast == null) {
-            return;
+    /**
+     * Collects the responses of a batch of tasks and sends them to their
+     * recipients, handing each connection all of its responses at once.
+     *
+     * Every distinct response is encoded only once per batch, however many
+     * recipients it has; a relayed {@link Command} arrives already encoded. All
+     * of the recipients are handed the same read-only buffer, and each
+     * connection writes from its own view of it.
+     */
+    private final class Dispatch {
+        private final ServerModel model;
+        private final Map<String, ByteBuffer> encoded;
+        private final Map<Integer, List<ByteBuffer>> pending;
+
+        public Dispatch(ServerModel model) {
+            this.model = model;
+            encoded = new HashMap<>();
+            pending = new LinkedHashMap<>();
         }
 
-        Map<Integer, List<String>> responses = broadcast.getResponses(model);
-        for (int userId : responses.keySet()) {
-            try {
-                Socket clientSocket = openSockets.get(userId);
-                PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
-                for (String response : responses.get(userId)) {
-                    pw.println(response);
-                    pw.flush();
-                    System.out.printf("Response sent to user %d: \"%s\"\n", userId, response);
+        /**
+         * Adds the responses in a {@link Broadcast} to the batch. The model
+         * addresses its broadcasts by user ID, so these are used as they are;
+         * recipients addressed by nickname are looked up straight away, since
+         * later tasks in the batch may change their nicknames.
+         *
+         * @param broadcast The broadcast to add, or null for none
+         */
+        void add(Broadcast broadcast) {
+            if (broadcast == null) {
+                return;
+            }
+
+            ServerLog log = ServerLog.get();
+            boolean tracing = log.isEnabled(ServerLog.Level.TRACE);
+            for (Broadcast.Entry entry : broadcast.getEntries()) {
+                String response = entry.getResponse();
+                ByteBuffer buffer = entry.getEncoded();
+                if (buffer == null) {
+                    buffer = encoded.get(response);
+                }
+                if (buffer == null) {
+                    buffer = encode(response);
+                    encoded.put(response, buffer);
+                }
+                for (int i = 0; i < entry.getRecipientIdCount(); i++) {
+                    add(entry.getRecipientId(i), buffer);
+                    if (tracing) {
+                        log.trace("Response sent to user %d: \"%s\"", entry.getRecipientId(i), response);
+                    }
+                }
+                for (String recipient : entry.getRecipients()) {
+                    int userId = model.getUserId(recipient);
+                    add(userId, buffer);
+                    if (tracing) {
+                        log.trace("Response sent to user %d: \"%s\"", userId, response);
+                    }
+                }
+            }
+        }
+
+        private void add(int userId, ByteBuffer buffer) {
+            List<ByteBuffer> buffers = pending.get(userId);
+            if (buffers == null) {
+                buffers = new ArrayList<>();
+                pending.put(userId, buffers);
+            }
+            buffers.add(buffer);
+        }
+
+        /**
+         * Sends the batch's responses to their recipients and empties the batch.
+         */
+        void flush() {
+            for (Map.Entry<Integer, List<ByteBuffer>> entry : pending.entrySet()) {
+                Connection connection = openConnections.get(entry.getKey());
+                if (connection == null) {
+                    continue;
+                }
+                try {
+                    connection.send(entry.getValue());
+                } catch (IOException iox) {
+                    iox.printStackTrace();
                 }
-                pw.flush();
+            }
+            pending.clear();
+            encoded.clear();
+        }
+    }
+
+    // ==========================================================================
+    // Connections
+    // ==========================================================================
+
+    /**
+     * An engine's handle for sending responses to one connected client.
+     */
+    interface Connection {
+        /**
+         * Queues the given encoded responses to be sent to the client, in order.
+         * This does not wait for them to be written, except as required by
+         * {@link OutboundQueue.Policy#BLOCK}. The buffers may be shared with other
+         * connections, and are not modified.
+         *
+         * @param responses The encoded response lines, as made by {@link #encode}
+         * @throws IOException if the responses could not be handed to the client
+         */
+        void send(List<ByteBuffer> responses) throws IOException;
+
+        /**
+         * Queues one encoded response to be sent to the client, unless the client
+         * is already too far behind. Unlike {@link #send}, this never waits, so
+         * it may be called from the thread that writes to the client.
+         *
+         * @param response The encoded response line, as made by {@link #encode}
+         * @return true if the response was queued
+         */
+        boolean sendIfRoom(ByteBuffer response);
+
+        /**
+         * Gets the number of responses discarded because the client was too slow
+         * to read them.
+         *
+         * @return the number of dropped responses
+         */
+        long getDroppedCount();
+
+        /**
+         * Closes the connection to the client.
+         *
+         * @throws IOException if closing the underlying socket fails
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * A {@link Connection} over a blocking {@link Socket}. Its outbound queue is
+     * drained by a task on the worker pool, which runs whenever responses are
+     * waiting (after the coalescing window, if one is configured) and ends once
+     * the queue is empty.
+     *
+     * The drain task copies responses into a long-lived write buffer and only
+     * writes to the socket when that buffer fills up or the queue runs dry, so the
+     * responses queued for a client are usually sent with a single write.
+     *
+     * Only one drain task runs at a time, so writes need no lock; in particular no
+     * monitor is held across the blocking write, which would pin the carrier of a
+     * virtual thread.
+     */
+    private final class SocketConnection implements Connection, Runnable {
+        private final Socket clientSocket;
+        private final OutputStream out;
+        private final Executor drainer;
+        private final ScheduledExecutorService flushTimer;
+        private final OutboundQueue outbound;
+        private final AtomicBoolean drainScheduled;
+        private final byte[] writeBuffer;
+        private int writeLength;
+        private volatile int userId;
+
+        /**
+         * Constructs a {@code SocketConnection}.
+         *
+         * @param clientSocket The client's socket
+         * @param drainer      The executor to drain the outbound queue on
+         * @param flushTimer   The timer that delays draining by the coalescing
+         *                     window, or null to drain straight away
+         * @throws IOException if the socket cannot be set up
+         */
+        public SocketConnection(Socket clientSocket, Executor drainer, ScheduledExecutorService flushTimer)
+                throws IOException {
+            this.clientSocket = clientSocket;
+            this.drainer = drainer;
+            this.flushTimer = flushTimer;
+            clientSocket.setTcpNoDelay(config.isTcpNoDelay());
+            out = clientSocket.getOutputStream();
+            outbound = newOutboundQueue();
+            drainScheduled = new AtomicBoolean(false);
+            writeBuffer = new byte[WRITE_BUFFER_SIZE];
+            writeLength = 0;
+        }
+
+        @Override
+        public void send(List<ByteBuffer> responses) throws IOException {
+            if (!outbound.offer(responses)) {
+                ServerLog.get().warn("User %d is too slow to keep up; disconnecting", userId);
+                close();
+                disconnected(userId);
+                return;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public boolean sendIfRoom(ByteBuffer response) {
+            if (!outbound.offerIfRoom(response)) {
+                return false;
+            }
+            scheduleDrain();
+            return true;
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return outbound.getDroppedCount();
+        }
+
+        private void scheduleDrain() {
+            if (drainScheduled.compareAndSet(false, true)) {
+                try {
+                    if (flushTimer == null) {
+                        drainer.execute(this);
+                    } else {
+                        flushTimer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                drainer.execute(SocketConnection.this);
+                            }
+                        }, config.getCoalesceMillis(), TimeUnit.MILLISECONDS);
+                    }
+                } catch (RejectedExecutionException rex) {
+                    // The server is shutting down
+                }
+            }
+        }
+
+        /**
+         * Drains the outbound queue.
+         */
+        @Override
+        public void run() {
+            try {
+                do {
+                    ByteBuffer buffer;
+                    while ((buffer = outbound.peek()) != null) {
+                        write(buffer);
+                        outbound.remove();
+                    }
+                    flush();
+                    drainScheduled.set(false);
+                } while (!outbound.isEmpty() && drainScheduled.compareAndSet(false, true));
             } catch (IOException iox) {
-                iox.printStackTrace();
+                // The ConnectionWorker sees the failure too, and disconnects
+                outbound.close();
+                drainScheduled.set(false);
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (writeLength == writeBuffer.length) {
+                    flush();
+                }
+                int length = Math.min(writeBuffer.length - writeLength, buffer.remaining());
+                buffer.get(writeBuffer, writeLength, length);
+                writeLength += length;
             }
         }
+
+        private void flush() throws IOException {
+            if (writeLength > 0) {
+                out.write(writeBuffer, 0, writeLength);
+                writeLength = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            outbound.close();
+            clientSocket.close();
+        }
     }
 
     // ==========================================================================
@@ -187,42 +833,281 @@ final class ServerBackend implements Runnable {
                 while (running && !clientSocket.isClosed()) {
                     String line = reader.readLine();
                     if (line != null) {
-                        System.out.printf("Request received from user %d: " + "\"%s\"\n", userId, line);
-                        String payload;
-                        if (line.startsWith(":")) {
-                            int index = line.indexOf(' ');
-                            payload = line.substring(index + 1);
-                        } else {
-                            payload = line;
-                        }
-                        Request request = new Request(userId, payload);
-                        taskQueue.add(request);
+                        received(userId, line);
                     } else {
                         clientSocket.close();
-                        taskQueue.add(new Disconnection(userId));
+                        disconnected(userId);
                     }
                 }
             } catch (IOException iox) {
                 iox.printStackTrace();
-                taskQueue.add(new Disconnection(userId));
+                disconnected(userId);
             } finally {
-                openSockets.remove(userId);
+                openConnections.remove(userId);
             }
         }
     }
 
+    // ==========================================================================
+    // Model shards
+    // ==========================================================================
+
+    /**
+     * A model thread, together with its task queue and the {@link ServerModel}
+     * that only it may touch.
+     */
+    private final class ModelShard implements Runnable {
+        private final int index;
+        private final ServerModel model;
+        private final BlockingQueue<Task> queue;
+        // The queue if it is a ring buffer, which tasks can be forced into
+        private final MpscRingBuffer<Task> ring;
+        private final Dispatch dispatch;
+        private final int shedQueueDepth;
+        private final long shedLagNanos;
+        private volatile Thread thread;
+        // How long the first request of the latest batch had been queued, or zero
+        // once the queue has been emptied
+        private volatile long lagNanos;
+
+        public ModelShard(int index, ServerModel model) {
+            this.index = index;
+            this.model = model;
+            if (config.getTaskQueue() == ServerConfig.TaskQueue.RING) {
+                ring = new MpscRingBuffer<>(config.getTaskQueueCapacity(), config.getWaitStrategy());
+                queue = ring;
+            } else {
+                ring = null;
+                queue = new LinkedBlockingQueue<>();
+            }
+            dispatch = new Dispatch(model);
+            shedQueueDepth = config.getShedQueueDepth();
+            shedLagNanos = TimeUnit.MILLISECONDS.toNanos(config.getShedLagMillis());
+            thread = null;
+            lagNanos = 0;
+        }
+
+        /**
+         * Queues a task without ever waiting for room. A linked queue is never
+         * full; a ring buffer keeps the task in its overflow list if it is.
+         */
+        void force(Task task) {
+            if (ring != null) {
+                ring.force(task);
+            } else {
+                queue.add(task);
+            }
+        }
+
+        /**
+         * Determines whether the shard is too far behind to take more messages.
+         * Called on connection threads.
+         */
+        boolean isOverloaded() {
+            return shedQueueDepth > 0 && queue.size() >= shedQueueDepth
+                    || shedLagNanos > 0 && lagNanos >= shedLagNanos;
+        }
+
+        private void recordLag(List<Task> batch) {
+            long lag = 0;
+            if (!queue.isEmpty()) {
+                for (Task task : batch) {
+                    if (task instanceof Request) {
+                        lag = System.nanoTime() - ((Request) task).queuedNanos;
+                        break;
+                    }
+                }
+            }
+            lagNanos = lag;
+            long slowest = 0;
+            for (ModelShard shard : shards) {
+                slowest = Math.max(slowest, shard.lagNanos);
+            }
+            stats.recordLag(slowest);
+        }
+
+        @Override
+        public void run() {
+            int maxBatch = config.getModelBatchSize();
+            List<Task> batch = new ArrayList<>(maxBatch);
+            while (running || !queue.isEmpty()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ix) {
+                    continue;
+                }
+                if (maxBatch > 1) {
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+                stats.recordBatch(batch.size());
+                recordLag(batch);
+                for (Task task : batch) {
+                    if (task instanceof GlobalTask) {
+                        // Earlier responses must go out before the global task's
+                        dispatch.flush();
+                        ((GlobalTask) task).execute(this);
+                    } else {
+                        try {
+                            dispatch.add(task.getBroadcast(model));
+                        } catch (RuntimeException rx) {
+                            rx.printStackTrace();
+                        }
+                        if (task.isGlobal()) {
+                            rememberNickname(task, model);
+                        }
+                    }
+                }
+                batch.clear();
+                dispatch.flush();
+            }
+
+            if (index == 0) {
+                closeListener();
+                ServerLog.get().info("Model thread statistics: %s", stats);
+            }
+        }
+    }
+
+    /**
+     * A task that needs every shard's model, queued on every shard. Once all the
+     * shards have reached it, the first shard runs the task against each shard's
+     * model in turn and dispatches the merged {@link Broadcast}, while the other
+     * shards wait for it to finish.
+     */
+    private final class GlobalTask implements Task {
+        private final Task task;
+        private final CountDownLatch arrived;
+        private final CountDownLatch finished;
+
+        public GlobalTask(Task task) {
+            this.task = task;
+            arrived = new CountDownLatch(shards.length);
+            finished = new CountDownLatch(1);
+        }
+
+        void execute(ModelShard shard) {
+            arrived.countDown();
+            if (shard.index != 0) {
+                awaitUninterruptibly(finished);
+                return;
+            }
+
+            awaitUninterruptibly(arrived);
+            try {
+                ServerModel[] models = new ServerModel[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                    models[i] = shards[i].model;
+                }
+                try {
+                    shard.dispatch.add(task.getBroadcast(models));
+                } catch (RuntimeException rx) {
+                    // as for any other task; the other shards must still be let go
+                    rx.printStackTrace();
+                }
+                shard.dispatch.flush();
+                rememberNickname(task, shard.model);
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public Broadcast getBroadcast(ServerModel model) {
+            return task.getBroadcast(model);
+        }
+
+        @Override
+        public int getUserId() {
+            return task.getUserId();
+        }
+    }
+
+    /**
+     * Waits for a latch, ignoring the interrupts used to wake idle model threads
+     * at shutdown; a shard must not skip past a global task that others wait on.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ix) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // ==========================================================================
     // Tasks
     // ==========================================================================
 
     private interface Task {
-        Broadcast getBroadcast();
+        /**
+         * Executes the task against a model.
+         *
+         * @param model The model of the shard executing the task
+         * @return The resulting broadcast, or null for none
+         */
+        Broadcast getBroadcast(ServerModel model);
+
+        /**
+         * Gets the user whose connection the task came from.
+         *
+         * @return the user's ID
+         */
+        int getUserId();
+
+        /**
+         * Executes a global task against every shard's model, while all the
+         * shards wait. By default the task is executed against each model in
+         * turn, and their broadcasts are merged.
+         *
+         * @param models The model of each shard, in order
+         * @return The resulting broadcast, or null for none
+         */
+        default Broadcast getBroadcast(ServerModel[] models) {
+            List<Broadcast> broadcasts = new ArrayList<>(models.length);
+            for (ServerModel model : models) {
+                try {
+                    Broadcast broadcast = getBroadcast(model);
+                    if (broadcast != null) {
+                        broadcasts.add(broadcast);
+                    }
+                } catch (RuntimeException rx) {
+                    rx.printStackTrace();
+                }
+            }
+            return Broadcast.merge(broadcasts);
+        }
+
+        /**
+         * Gets the channel the task acts on, which decides the shard it runs on.
+         *
+         * @return the channel name, or null if the task is not about one channel
+         */
+        default String getChannel() {
+            return null;
+        }
+
+        /**
+         * Determines whether the task changes the registered users, and so must
+         * run on every shard.
+         *
+         * @return true if the task must run on every shard
+         */
+        default boolean isGlobal() {
+            return false;
+        }
     }
 
     /**
      * Represents a client's connection to the server.
      */
-    private final class Registration implements Task {
+    private static final class Registration implements Task {
         private final int userId;
 
         public Registration(int userId) {
@@ -230,15 +1115,25 @@ final class ServerBackend implements Runnable {
         }
 
         @Override
-        public Broadcast getBroadcast() {
+        public Broadcast getBroadcast(ServerModel model) {
             return model.registerUser(userId);
         }
+
+        @Override
+        public int getUserId() {
+            return userId;
+        }
+
+        @Override
+        public boolean isGlobal() {
+            return true;
+        }
     }
 
     /**
      * Represents a client's disconnection from the server.
      */
-    private final class Disconnection implements Task {
+    private static final class Disconnection implements Task {
         private final int userId;
 
         public Disconnection(int userId) {
@@ -246,32 +1141,86 @@ final class ServerBackend implements Runnable {
         }
 
         @Override
-        public Broadcast getBroadcast() {
+        public Broadcast getBroadcast(ServerModel model) {
             return model.deregisterUser(userId);
         }
+
+        @Override
+        public int getUserId() {
+            return userId;
+        }
+
+        @Override
+        public boolean isGlobal() {
+            return true;
+        }
     }
 
     /**
-     * Represents an incoming command from a connected client.
+     * Represents an incoming command from a connected client, already parsed.
      */
-    private final class Request implements Task {
-        private final int userId;
-        private final String payload;
+    private static final class Request implements Task {
+        private final Command command;
+        // The channel deciding the shard the request runs on, or null if it runs
+        // on every shard or on none in particular
+        private final String channel;
+        // When the request was queued, to measure how far behind the model is
+        private final long queuedNanos;
 
-        public Request(int userId, String payload) {
-            this.userId = userId;
-            this.payload = payload;
+        public Request(Command command, int shardCount) {
+            this.command = command;
+            if (command instanceof BatchCommand) {
+                // a batch whose channels share a shard runs there like any
+                // other command on a channel
+                channel = ((BatchCommand) command).getShardChannel(shardCount);
+            } else {
+                channel = command.getChannel();
+            }
+            queuedNanos = System.nanoTime();
         }
 
         @Override
-        public Broadcast getBroadcast() {
-            String sender = model.getNickname(userId);
+        public Broadcast getBroadcast(ServerModel model) {
+            String sender = model.getNickname(command.getSenderId());
             if (sender == null) {
-                System.err.println("Nickname for given user ID not found");
+                ServerLog.get().error("Nickname for given user ID not found");
                 return null;
             }
-            Command command = CommandParser.parse(userId, sender, payload);
+            command.setSender(sender);
             return command.updateServerModel(model);
         }
+
+        @Override
+        public Broadcast getBroadcast(ServerModel[] models) {
+            if (!(command instanceof BatchCommand)) {
+                return Task.super.getBroadcast(models);
+            }
+            // a batch acts on each of its channels in the shard holding it
+            String sender = models[0].getNickname(command.getSenderId());
+            if (sender == null) {
+                ServerLog.get().error("Nickname for given user ID not found");
+                return null;
+            }
+            command.setSender(sender);
+            return ((BatchCommand) command).updateServerModels(models);
+        }
+
+        @Override
+        public int getUserId() {
+            return command.getSenderId();
+        }
+
+        @Override
+        public String getChannel() {
+            return channel;
+        }
+
+        @Override
+        public boolean isGlobal() {
+            // NICK renames the sender, and EXT changes how they are sent NAMES, in
+            // every shard; a batch may act on channels in several shards
+            return command instanceof NicknameCommand || command instanceof ExtensionCommand
+                    || command instanceof BatchCommand && channel == null;
+        }
     }
 }
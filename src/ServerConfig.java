@@ -0,0 +1,557 @@
+import java.util.Locale;
+
+/**
+ * A {@code ServerConfig} holds the startup settings of a {@link ServerBackend},
+ * such as the port to listen on and which networking engine to use. The
+ * defaults reproduce the original behavior of the server, except that a client
+ * that falls too far behind is disconnected rather than stalling everyone else
+ * (see {@link #getSlowConsumerPolicy()}); individual settings
+ * can be overridden with {@code -Dpennpals.<name>=<value>} system properties,
+ * which {@link ServerMain} reads via {@link #fromSystemProperties()}.
+ */
+final class ServerConfig {
+
+    /**
+     * The networking engines that the {@link ServerBackend} can use to talk to
+     * clients.
+     */
+    enum Engine {
+        /**
+         * One blocking {@code ConnectionWorker} thread per connected client.
+         */
+        BLOCKING,
+
+        /**
+         * Like {@link #BLOCKING}, but each {@code ConnectionWorker} runs on a virtual
+         * thread (Java 21 and later), so idle clients only cost a small heap object
+         * rather than a platform thread and its stack.
+         */
+        VIRTUAL,
+
+        /**
+         * A {@link SelectorEngine} multiplexing all clients over a small, fixed set
+         * of non-blocking I/O threads.
+         */
+        SELECTOR
+    }
+
+    /**
+     * The kinds of queue that can carry tasks to the model thread.
+     */
+    enum TaskQueue {
+        /**
+         * An unbounded {@link java.util.concurrent.LinkedBlockingQueue}.
+         */
+        LINKED,
+
+        /**
+         * A bounded, pre-allocated {@link MpscRingBuffer}.
+         */
+        RING
+    }
+
+    /**
+     * What connection threads do with a request when the task queue is full. A
+     * rejected request is answered with {@link ServerResponse#SERVER_BUSY}.
+     * Registrations and disconnections are never rejected and never wait: they
+     * are queued beyond the queue's capacity if need be, so that the model never
+     * loses track of a client.
+     */
+    enum FullQueuePolicy {
+        /**
+         * Wait until the model thread makes room. Selector I/O threads never
+         * wait, and reject the request instead.
+         */
+        BLOCK,
+
+        /**
+         * Discard the request and count it as rejected.
+         */
+        REJECT
+    }
+
+    private static final String PREFIX = "pennpals.";
+
+    private Engine engine;
+    private int port;
+    private int ioThreads;
+    private int outboundHighWatermark;
+    private int outboundLowWatermark;
+    private OutboundQueue.Policy slowConsumerPolicy;
+    private int coalesceMillis;
+    private boolean tcpNoDelay;
+    private int modelBatchSize;
+    private TaskQueue taskQueue;
+    private int taskQueueCapacity;
+    private MpscRingBuffer.WaitStrategy waitStrategy;
+    private FullQueuePolicy fullQueuePolicy;
+    private int modelShards;
+    private int shedQueueDepth;
+    private int shedLagMillis;
+    private ServerLog.Sink logSink;
+    private ServerLog.Level logLevel;
+    private int traceSampleRate;
+    private int logCapacity;
+    private boolean logNonBlocking;
+    private boolean coMemberIndex;
+
+    /**
+     * Constructs a {@code ServerConfig} with the default settings.
+     */
+    public ServerConfig() {
+        engine = Engine.BLOCKING;
+        port = 21212;
+        ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        outboundHighWatermark = 1 << 20;
+        outboundLowWatermark = 1 << 18;
+        slowConsumerPolicy = OutboundQueue.Policy.DISCONNECT;
+        coalesceMillis = 0;
+        tcpNoDelay = false;
+        modelBatchSize = 1;
+        taskQueue = TaskQueue.LINKED;
+        taskQueueCapacity = 1 << 16;
+        waitStrategy = MpscRingBuffer.WaitStrategy.PARK;
+        fullQueuePolicy = FullQueuePolicy.BLOCK;
+        modelShards = 1;
+        shedQueueDepth = 0;
+        shedLagMillis = 0;
+        logSink = ServerLog.CONSOLE;
+        logLevel = ServerLog.Level.INFO;
+        traceSampleRate = 1;
+        logCapacity = 1 << 14;
+        logNonBlocking = false;
+        coMemberIndex = false;
+    }
+
+    /**
+     * Creates a {@code ServerConfig} from the default settings, overridden by any
+     * {@code pennpals.*} system properties that are set.
+     *
+     * @return the resulting configuration
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(enumProperty("engine", Engine.class, config.getEngine()));
+        config.setPort(intProperty("port", config.getPort()));
+        config.setIoThreads(intProperty("ioThreads", config.getIoThreads()));
+        config.setOutboundWatermarks(intProperty("outboundHighWatermark", config.getOutboundHighWatermark()),
+                intProperty("outboundLowWatermark", config.getOutboundLowWatermark()));
+        config.setSlowConsumerPolicy(enumProperty("slowConsumerPolicy", OutboundQueue.Policy.class,
+                config.getSlowConsumerPolicy()));
+        config.setCoalesceMillis(intProperty("coalesceMillis", config.getCoalesceMillis()));
+        String tcpNoDelay = System.getProperty(PREFIX + "tcpNoDelay");
+        if (tcpNoDelay != null) {
+            config.setTcpNoDelay(Boolean.parseBoolean(tcpNoDelay.trim()));
+        }
+        config.setModelBatchSize(intProperty("modelBatchSize", config.getModelBatchSize()));
+        config.setTaskQueue(enumProperty("taskQueue", TaskQueue.class, config.getTaskQueue()));
+        config.setTaskQueueCapacity(intProperty("taskQueueCapacity", config.getTaskQueueCapacity()));
+        config.setWaitStrategy(enumProperty("waitStrategy", MpscRingBuffer.WaitStrategy.class,
+                config.getWaitStrategy()));
+        config.setFullQueuePolicy(enumProperty("fullQueuePolicy", FullQueuePolicy.class,
+                config.getFullQueuePolicy()));
+        config.setModelShards(intProperty("modelShards", config.getModelShards()));
+        config.setShedQueueDepth(intProperty("shedQueueDepth", config.getShedQueueDepth()));
+        config.setShedLagMillis(intProperty("shedLagMillis", config.getShedLagMillis()));
+        config.setLogLevel(enumProperty("logLevel", ServerLog.Level.class, config.getLogLevel()));
+        config.setTraceSampleRate(intProperty("traceSampleRate", config.getTraceSampleRate()));
+        config.setLogCapacity(intProperty("logCapacity", config.getLogCapacity()));
+        String logNonBlocking = System.getProperty(PREFIX + "logNonBlocking");
+        if (logNonBlocking != null) {
+            config.setLogNonBlocking(Boolean.parseBoolean(logNonBlocking.trim()));
+        }
+        String coMemberIndex = System.getProperty(PREFIX + "coMemberIndex");
+        if (coMemberIndex != null) {
+            config.setCoMemberIndex(Boolean.parseBoolean(coMemberIndex.trim()));
+        }
+        return config;
+    }
+
+    private static <E extends Enum<E>> E enumProperty(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException iax) {
+            throw new IllegalArgumentException("Invalid value for " + PREFIX + name + ": " + value);
+        }
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfx) {
+            throw new IllegalArgumentException("Invalid value for " + PREFIX + name + ": " + value);
+        }
+    }
+
+    // ==========================================================================
+    // Settings
+    // ==========================================================================
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        if (engine == null) {
+            throw new NullPointerException();
+        }
+        this.engine = engine;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        this.port = port;
+    }
+
+    /**
+     * Gets the number of I/O threads used by the {@link Engine#SELECTOR} engine.
+     *
+     * @return the number of selector threads
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Gets the number of bytes that may be queued for a client before the
+     * {@linkplain #getSlowConsumerPolicy() slow consumer policy} applies.
+     *
+     * @return the outbound high watermark, in bytes
+     */
+    public int getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    /**
+     * Gets the number of queued bytes that a slow client must get back down to
+     * before it is served normally again.
+     *
+     * @return the outbound low watermark, in bytes
+     */
+    public int getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    public void setOutboundWatermarks(int high, int low) {
+        if (low < 0 || low > high) {
+            throw new IllegalArgumentException("Invalid outbound watermarks: " + high + "/" + low);
+        }
+        outboundHighWatermark = high;
+        outboundLowWatermark = low;
+    }
+
+    /**
+     * Gets what happens to a client that falls more than the high watermark
+     * behind. The default disconnects it; {@link OutboundQueue.Policy#BLOCK}
+     * instead makes the model thread wait for it, stalling every other client.
+     *
+     * @return the slow consumer policy
+     */
+    public OutboundQueue.Policy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(OutboundQueue.Policy slowConsumerPolicy) {
+        if (slowConsumerPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Gets how long responses for a client may wait to be coalesced with later
+     * ones before they are written. With no window, the responses that are queued
+     * when a client's queue is drained are still written together.
+     *
+     * @return the coalescing window, in milliseconds
+     */
+    public int getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    public void setCoalesceMillis(int coalesceMillis) {
+        if (coalesceMillis < 0) {
+            throw new IllegalArgumentException("Invalid coalescing window: " + coalesceMillis);
+        }
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Gets whether client sockets disable Nagle's algorithm, trading more packets
+     * for lower latency.
+     *
+     * @return the value of {@code TCP_NODELAY} for client sockets
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Gets the largest number of queued tasks that the model thread executes
+     * before sending out their responses. A size of one executes and dispatches
+     * each task on its own.
+     *
+     * @return the maximum model thread batch size
+     */
+    public int getModelBatchSize() {
+        return modelBatchSize;
+    }
+
+    public void setModelBatchSize(int modelBatchSize) {
+        if (modelBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid model batch size: " + modelBatchSize);
+        }
+        this.modelBatchSize = modelBatchSize;
+    }
+
+    public TaskQueue getTaskQueue() {
+        return taskQueue;
+    }
+
+    public void setTaskQueue(TaskQueue taskQueue) {
+        if (taskQueue == null) {
+            throw new NullPointerException();
+        }
+        this.taskQueue = taskQueue;
+    }
+
+    /**
+     * Gets the number of tasks the {@link TaskQueue#RING} queue can hold.
+     *
+     * @return the task queue capacity
+     */
+    public int getTaskQueueCapacity() {
+        return taskQueueCapacity;
+    }
+
+    public void setTaskQueueCapacity(int taskQueueCapacity) {
+        if (taskQueueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid task queue capacity: " + taskQueueCapacity);
+        }
+        this.taskQueueCapacity = taskQueueCapacity;
+    }
+
+    /**
+     * Gets how threads wait on the {@link TaskQueue#RING} queue.
+     *
+     * @return the ring buffer's wait strategy
+     */
+    public MpscRingBuffer.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(MpscRingBuffer.WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public FullQueuePolicy getFullQueuePolicy() {
+        return fullQueuePolicy;
+    }
+
+    public void setFullQueuePolicy(FullQueuePolicy fullQueuePolicy) {
+        if (fullQueuePolicy == null) {
+            throw new NullPointerException();
+        }
+        this.fullQueuePolicy = fullQueuePolicy;
+    }
+
+    /**
+     * Gets the number of model threads, each owning the channels whose names hash
+     * to it.
+     *
+     * @return the number of model shards
+     */
+    public int getModelShards() {
+        return modelShards;
+    }
+
+    public void setModelShards(int modelShards) {
+        if (modelShards < 1) {
+            throw new IllegalArgumentException("Invalid number of model shards: " + modelShards);
+        }
+        this.modelShards = modelShards;
+    }
+
+    /**
+     * Gets how many tasks may wait in a shard's queue before messages for the
+     * shard's channels are turned away with {@link ServerResponse#SERVER_BUSY}.
+     * Zero never turns messages away for the queue's depth.
+     *
+     * @return the queue depth at which messages are shed
+     */
+    public int getShedQueueDepth() {
+        return shedQueueDepth;
+    }
+
+    public void setShedQueueDepth(int shedQueueDepth) {
+        if (shedQueueDepth < 0) {
+            throw new IllegalArgumentException("Invalid shed queue depth: " + shedQueueDepth);
+        }
+        this.shedQueueDepth = shedQueueDepth;
+    }
+
+    /**
+     * Gets how long requests may have waited in a shard's queue before messages
+     * for the shard's channels are turned away with
+     * {@link ServerResponse#SERVER_BUSY}. Zero never turns messages away for the
+     * model thread's lag.
+     *
+     * @return the lag in milliseconds at which messages are shed
+     */
+    public int getShedLagMillis() {
+        return shedLagMillis;
+    }
+
+    public void setShedLagMillis(int shedLagMillis) {
+        if (shedLagMillis < 0) {
+            throw new IllegalArgumentException("Invalid shed lag: " + shedLagMillis);
+        }
+        this.shedLagMillis = shedLagMillis;
+    }
+
+    /**
+     * Gets where the server's log messages are written. The sink cannot be set
+     * from a system property.
+     *
+     * @return the log sink
+     */
+    public ServerLog.Sink getLogSink() {
+        return logSink;
+    }
+
+    public void setLogSink(ServerLog.Sink logSink) {
+        if (logSink == null) {
+            throw new NullPointerException();
+        }
+        this.logSink = logSink;
+    }
+
+    /**
+     * Gets the least severe level of message that is logged. The default logs
+     * significant server events; {@link ServerLog.Level#TRACE} logs every
+     * request and response, as the server used to.
+     *
+     * @return the log level
+     */
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(ServerLog.Level logLevel) {
+        if (logLevel == null) {
+            throw new NullPointerException();
+        }
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Gets the sampling rate of per-message traces: one in every this many is
+     * logged.
+     *
+     * @return the trace sample rate
+     */
+    public int getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public void setTraceSampleRate(int traceSampleRate) {
+        if (traceSampleRate < 1) {
+            throw new IllegalArgumentException("Invalid trace sample rate: " + traceSampleRate);
+        }
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    /**
+     * Gets the number of log messages that may wait to be written.
+     *
+     * @return the log queue capacity
+     */
+    public int getLogCapacity() {
+        return logCapacity;
+    }
+
+    public void setLogCapacity(int logCapacity) {
+        if (logCapacity < 1) {
+            throw new IllegalArgumentException("Invalid log capacity: " + logCapacity);
+        }
+        this.logCapacity = logCapacity;
+    }
+
+    /**
+     * Gets whether log messages are dropped and counted when the log queue is
+     * full, so that logging never makes a server thread wait.
+     *
+     * @return true if the log never blocks
+     */
+    public boolean isLogNonBlocking() {
+        return logNonBlocking;
+    }
+
+    public void setLogNonBlocking(boolean logNonBlocking) {
+        this.logNonBlocking = logNonBlocking;
+    }
+
+    /**
+     * Gets whether the model tracks which users share a channel, trading memory
+     * for faster NICK and disconnect handling. See
+     * {@link ServerModel#ServerModel(boolean)}.
+     *
+     * @return true if the co-member index is kept
+     */
+    public boolean isCoMemberIndex() {
+        return coMemberIndex;
+    }
+
+    public void setCoMemberIndex(boolean coMemberIndex) {
+        this.coMemberIndex = coMemberIndex;
+    }
+
+    /**
+     * Creates an empty model with the configured indexes.
+     *
+     * @return a new {@link ServerModel}
+     */
+    public ServerModel newModel() {
+        return new ServerModel(coMemberIndex);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("engine=%s port=%d ioThreads=%d outbound=%d/%d(%s) coalesceMillis=%d tcpNoDelay=%b"
+                + " modelBatchSize=%d taskQueue=%s(%d, %s, %s) modelShards=%d shed=%d/%dms log=%s(1/%d, %d, %s)"
+                + " coMemberIndex=%b", engine,
+                port, ioThreads, outboundHighWatermark, outboundLowWatermark, slowConsumerPolicy, coalesceMillis,
+                tcpNoDelay, modelBatchSize, taskQueue, taskQueueCapacity, waitStrategy, fullQueuePolicy, modelShards,
+                shedQueueDepth, shedLagMillis, logLevel, traceSampleRate, logCapacity,
+                logNonBlocking ? "non-blocking" : "blocking", coMemberIndex);
+    }
+}
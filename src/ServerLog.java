@@ -0,0 +1,289 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code ServerLog} keeps console output off the server's hot paths.
+ * Logging threads only queue a message's format string and arguments on a
+ * bounded {@link MpscRingBuffer}; a single background thread formats them and
+ * hands them to a pluggable {@link Sink}, so the model thread never waits on
+ * the terminal.
+ *
+ * Messages below the log's {@link Level} are discarded before they are
+ * queued. Per-message {@link Level#TRACE} output, such as every request
+ * received and every response sent, can also be sampled. When the queue is
+ * full a blocking log waits for room, while a non-blocking one drops the
+ * message and counts it instead.
+ *
+ * The server logs through the {@linkplain #get() installed} log, which the
+ * {@link ServerBackend} replaces according to its {@link ServerConfig}.
+ */
+final class ServerLog {
+
+    /**
+     * The severity of a message, from least to most severe.
+     */
+    enum Level {
+        /**
+         * Per-message traces, such as every request and response.
+         */
+        TRACE,
+
+        /**
+         * Details of individual commands.
+         */
+        DEBUG,
+
+        /**
+         * Significant server events.
+         */
+        INFO,
+
+        /**
+         * Problems the server recovers from, such as a client being disconnected
+         * for falling behind.
+         */
+        WARN,
+
+        /**
+         * Failures.
+         */
+        ERROR
+    }
+
+    /**
+     * Where formatted messages are written. A sink is only ever called from the
+     * log's background thread.
+     */
+    interface Sink {
+        void write(Level level, String message);
+    }
+
+    /**
+     * Writes {@link Level#WARN} and {@link Level#ERROR} messages to standard
+     * error, and everything else to standard output.
+     */
+    static final Sink CONSOLE = new Sink() {
+        @Override
+        public void write(Level level, String message) {
+            if (level.compareTo(Level.WARN) >= 0) {
+                System.err.println(message);
+            } else {
+                System.out.println(message);
+            }
+        }
+    };
+
+    // How long close() waits for queued messages to be written
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private static volatile ServerLog installed = new ServerLog(CONSOLE, Level.INFO, 1, 1 << 14, false);
+
+    private final Sink sink;
+    private final Level level;
+    private final int traceSampleRate;
+    private final boolean nonBlocking;
+    private final MpscRingBuffer<Entry> queue;
+    private final AtomicLong traceCount;
+    private final AtomicLong droppedCount;
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructs a {@code ServerLog} and starts its background thread.
+     *
+     * @param sink            Where to write messages
+     * @param level           The least severe level to log
+     * @param traceSampleRate Log one in every this many {@link Level#TRACE}
+     *                        messages
+     * @param capacity        How many messages may wait to be written
+     * @param nonBlocking     Whether to drop messages when the queue is full,
+     *                        rather than wait for room
+     * @throws IllegalArgumentException if the sample rate or capacity is not
+     *                                  positive
+     */
+    public ServerLog(Sink sink, Level level, int traceSampleRate, int capacity, boolean nonBlocking) {
+        if (sink == null || level == null) {
+            throw new NullPointerException();
+        }
+        if (traceSampleRate < 1) {
+            throw new IllegalArgumentException("Invalid trace sample rate: " + traceSampleRate);
+        }
+        this.sink = sink;
+        this.level = level;
+        this.traceSampleRate = traceSampleRate;
+        this.nonBlocking = nonBlocking;
+        queue = new MpscRingBuffer<>(capacity, MpscRingBuffer.WaitStrategy.PARK);
+        traceCount = new AtomicLong();
+        droppedCount = new AtomicLong();
+        closed = false;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, "Log thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the log that the server currently writes to.
+     *
+     * @return the installed log
+     */
+    public static ServerLog get() {
+        return installed;
+    }
+
+    /**
+     * Makes a log the one the server writes to, and closes the log it replaces
+     * once that has written out its queued messages.
+     *
+     * @param log The log to install
+     */
+    public static void install(ServerLog log) {
+        if (log == null) {
+            throw new NullPointerException();
+        }
+        ServerLog previous = installed;
+        installed = log;
+        if (previous != log) {
+            previous.close();
+        }
+    }
+
+    // ==========================================================================
+    // Logging
+    // ==========================================================================
+
+    /**
+     * Determines whether messages of a level would be logged at all, so that
+     * callers can skip building expensive arguments.
+     *
+     * @param messageLevel The level to check
+     * @return true if messages of the level are logged
+     */
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Queues a message to be formatted with {@link String#format} and written.
+     * The arguments are formatted later, on the log's own thread, so they should
+     * not be modified afterwards.
+     *
+     * @param messageLevel The severity of the message
+     * @param format       The message's format string
+     * @param args         The arguments referenced by the format string
+     */
+    public void log(Level messageLevel, String format, Object... args) {
+        if (!isEnabled(messageLevel) || closed) {
+            return;
+        }
+        if (messageLevel == Level.TRACE && traceSampleRate > 1
+                && traceCount.getAndIncrement() % traceSampleRate != 0) {
+            return;
+        }
+        Entry entry = new Entry(messageLevel, format, args);
+        if (nonBlocking) {
+            if (!queue.offer(entry)) {
+                droppedCount.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException ix) {
+            droppedCount.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void trace(String format, Object... args) {
+        log(Level.TRACE, format, args);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /**
+     * Gets the number of messages discarded because the queue was full.
+     *
+     * @return the number of dropped messages
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops accepting messages, and waits briefly for the queued ones to be
+     * written.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ==========================================================================
+    // Background thread
+    // ==========================================================================
+
+    private void writeEntries() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ix) {
+                entry = null;
+            }
+            if (entry == null) {
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                String message = entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args);
+                sink.write(entry.level, message);
+            } catch (RuntimeException rx) {
+                rx.printStackTrace();
+            }
+        }
+        long dropped = droppedCount.get();
+        if (dropped > 0) {
+            sink.write(Level.WARN, "Log closed; " + dropped + " messages were dropped");
+        }
+    }
+
+    private static final class Entry {
+        private final Level level;
+        private final String format;
+        private final Object[] args;
+
+        public Entry(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
@@ -9,8 +9,8 @@ public final class ServerMain {
      * Initializes and starts a {@link ServerBackend}, a {@link ServerModel}, and a
      * very basic UI to indicate that the server is running. When that UI is closed,
      * using the standard operating system "X" control, the server is shut down.
-     *
-     * You do not need to modify this file.
+     * Startup settings are read from {@code pennpals.*} system properties; see
+     * {@link ServerConfig}.
      */
     public static void main(String[] args) {
         final JFrame frame = new JFrame("PennPals Server");
@@ -22,8 +22,9 @@ public final class ServerMain {
         frame.pack();
         frame.setSize(new Dimension(250, 100));
 
-        final ServerModel state = new ServerModel();
-        final ServerBackend server = new ServerBackend(state);
+        final ServerConfig config = ServerConfig.fromSystemProperties();
+        final ServerModel state = config.newModel();
+        final ServerBackend server = new ServerBackend(state, config);
         final Timer timer = new Timer(100, null);
 
         timer.addActionListener(new ActionListener() {
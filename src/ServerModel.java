@@ -8,16 +8,54 @@ import java.util.*;
  * client connection/disconnection.
  */
 public final class ServerModel implements ServerModelApi {
-    private Map<Integer, String> registeredUsers;
+    private static final String DEFAULT_NICKNAME_PREFIX = "User";
+
+    // Registered users are indexed both ways, so that looking up a user by ID or
+    // by nickname does not depend on the number of users
+    private IntHashMap<String> nicknamesById;
+    private Map<String, Integer> userIdsByNickname;
+    // Bit X is set while some user has the default-style nickname "UserX",
+    // whether it was generated or claimed with NICK. No suffix below
+    // lowestFreeSuffix is free.
+    private BitSet defaultNicknames;
+    private int lowestFreeSuffix;
     private Map<String, Channel> createdChannels;
+    // The channels each user ID is a member of, so that per-user operations
+    // only visit the user's own channels. A channel's owner is always a member.
+    private IntHashMap<Set<Channel>> channelsByMember;
+    // Optionally, for each user ID, the number of channels it shares with each
+    // other user ID, so that the audience of a NICK or QUIT is known without
+    // visiting channels. Null when not tracked.
+    private IntHashMap<IntHashMap<int[]>> coMembers;
+    // The user IDs that have enabled the chunked NAMES extension with EXT
+    private IntHashSet namesExtensionUsers;
 
     /**
      * Constructs a {@code ServerModel} and initializes any collections needed for
      * modeling the server state.
      */
     public ServerModel() {
-        registeredUsers = new TreeMap<>();
+        this(false);
+    }
+
+    /**
+     * Constructs a {@code ServerModel}, optionally tracking which users share a
+     * channel. Tracking makes finding the users who share a channel with someone
+     * independent of the number and size of their channels, at the cost of an
+     * entry for every pair of users who share one, and of work proportional to a
+     * channel's size whenever someone joins or leaves it.
+     *
+     * @param trackCoMembers Whether to track the users who share a channel
+     */
+    public ServerModel(boolean trackCoMembers) {
+        nicknamesById = new IntHashMap<>();
+        userIdsByNickname = new HashMap<>();
+        defaultNicknames = new BitSet();
+        lowestFreeSuffix = 0;
         createdChannels = new TreeMap<>();
+        channelsByMember = new IntHashMap<>();
+        coMembers = trackCoMembers ? new IntHashMap<IntHashMap<int[]>>() : null;
+        namesExtensionUsers = new IntHashSet();
     }
 
     // ==========================================================================
@@ -37,8 +75,8 @@ public final class ServerModel implements ServerModelApi {
      */
     public Broadcast registerUser(int userId) {
         String nickname = generateUniqueNickname();
-        registeredUsers.put(userId, nickname);
-        return Broadcast.connected(nickname);
+        putUser(userId, nickname);
+        return Broadcast.connected(nickname, userId, this);
 
     }
 
@@ -49,13 +87,71 @@ public final class ServerModel implements ServerModelApi {
      * @return the generated nickname
      */
     private String generateUniqueNickname() {
+        // The suffix is found from the last one released or handed out, rather
+        // than by probing nicknames from zero
+        lowestFreeSuffix = defaultNicknames.nextClearBit(lowestFreeSuffix);
+        return DEFAULT_NICKNAME_PREFIX + lowestFreeSuffix;
+    }
+
+    /**
+     * Gets the suffix X of a nickname of the form "UserX", as generated by
+     * {@link #generateUniqueNickname()}.
+     *
+     * @param nickname The nickname to inspect
+     * @return X, or -1 if the nickname is not of that form
+     */
+    private static int defaultSuffix(String nickname) {
+        int length = nickname.length();
+        int start = DEFAULT_NICKNAME_PREFIX.length();
+        // Generated suffixes have no leading zeros, and fit in an int
+        if (!nickname.startsWith(DEFAULT_NICKNAME_PREFIX) || length == start || length - start > 9
+                || (nickname.charAt(start) == '0' && length - start > 1)) {
+            return -1;
+        }
         int suffix = 0;
-        String nickname;
-        Collection<String> existingUsers = getRegisteredUsers();
-        do {
-            nickname = "User" + suffix++;
-        } while (existingUsers != null && existingUsers.contains(nickname));
-        return nickname;
+        for (int i = start; i < length; i++) {
+            char c = nickname.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            suffix = suffix * 10 + (c - '0');
+        }
+        return suffix;
+    }
+
+    /**
+     * Registers a nickname for a user ID in both indexes, replacing any nickname
+     * the user had before.
+     */
+    private void putUser(int userId, String nickname) {
+        String oldName = nicknamesById.put(userId, nickname);
+        if (oldName != null) {
+            releaseNickname(oldName);
+        }
+        userIdsByNickname.put(nickname, userId);
+        int suffix = defaultSuffix(nickname);
+        if (suffix >= 0) {
+            defaultNicknames.set(suffix);
+        }
+    }
+
+    /**
+     * Removes a user ID and its nickname from both indexes.
+     */
+    private void removeUser(int userId) {
+        String nickname = nicknamesById.remove(userId);
+        if (nickname != null) {
+            releaseNickname(nickname);
+        }
+    }
+
+    private void releaseNickname(String nickname) {
+        userIdsByNickname.remove(nickname);
+        int suffix = defaultSuffix(nickname);
+        if (suffix >= 0) {
+            defaultNicknames.clear(suffix);
+            lowestFreeSuffix = Math.min(lowestFreeSuffix, suffix);
+        }
     }
 
     /**
@@ -92,42 +188,71 @@ public final class ServerModel implements ServerModelApi {
      */
     public Broadcast deregisterUser(int userId) {
         // get nickname of the user ID
-        String nickname = registeredUsers.get(userId);
-        registeredUsers.remove(userId);
-        Set<String> others = (Set<String>) getOtherUsers(nickname);
-
-        // removes users from all the channels user is in
-        Set<String> channelsToRmv = new TreeSet<String>();
-        for (Map.Entry<String, Channel> mapEntry : createdChannels.entrySet()) {
-            Channel c = mapEntry.getValue();
-            String s = mapEntry.getKey();
-            if (mapEntry.getValue().getUsersInChannel().contains(nickname)) {
-                c.remove(nickname);
-            }
-            if (c.getOwner().equals(nickname)) {
-                channelsToRmv.add(s);
+        String nickname = nicknamesById.get(userId);
+        int[] others = getOtherUserIds(userId);
+
+        // removes users from all the channels user is in, and the channels they
+        // own along with them, while their nickname can still be looked up
+        Set<Channel> memberships = channelsByMember.remove(userId);
+        if (memberships != null) {
+            for (Channel c : memberships) {
+                c.remove(userId);
+                removeCoMember(userId, c);
+                if (c.getOwnerId() == userId) {
+                    removeChannel(c);
+                }
             }
         }
-        for (String chan : channelsToRmv) {
-            createdChannels.remove(chan);
-        }
+        removeUser(userId);
+        namesExtensionUsers.remove(userId);
         // let other users know that the user is disconnected
-        return Broadcast.disconnected(nickname, others);
+        return Broadcast.disconnected(nickname, userId, others, this);
     }
 
     // helper: get all the other users in the channels that the user is in (not
     // including that user)
     public Collection<String> getOtherUsers(String nickname) {
         Set<String> other = new TreeSet<>();
-        for (Map.Entry<String, Channel> mapEntry : createdChannels.entrySet()) {
-            if (mapEntry.getValue().getUsersInChannel().contains(nickname)) {
-                other.addAll(mapEntry.getValue().getUsersInChannel());
+        if (coMembers != null) {
+            IntHashMap<int[]> neighbours = coMembers.get(getUserId(nickname));
+            if (neighbours != null) {
+                for (int userId : neighbours.keys()) {
+                    other.add(getNickname(userId));
+                }
+            }
+            return other;
+        }
+        Set<Channel> memberships = getMemberships(nickname);
+        if (memberships != null) {
+            for (Channel c : memberships) {
+                other.addAll(c.getUsersInChannel());
             }
         }
         other.remove(nickname);// not include that user
         return other;
     }
 
+    // helper: get the IDs of all the other users in the channels that the user
+    // is in (not including that user)
+    public int[] getOtherUserIds(int userId) {
+        if (coMembers != null) {
+            IntHashMap<int[]> neighbours = coMembers.get(userId);
+            return neighbours == null ? new int[0] : neighbours.keys();
+        }
+        IntHashSet other = new IntHashSet();
+        Set<Channel> memberships = channelsByMember.get(userId);
+        if (memberships != null) {
+            for (Channel c : memberships) {
+                for (int memberId : c.getMemberIds()) {
+                    if (memberId != userId) {
+                        other.add(memberId);
+                    }
+                }
+            }
+        }
+        return other.toArray();
+    }
+
     // ==========================================================================
     // Server model queries
     // These functions provide helpful ways to test the state of your model.
@@ -143,15 +268,8 @@ public final class ServerModel implements ServerModelApi {
      *         exists, otherwise -1
      */
     public int getUserId(String nickname) {
-        // nickname in the map -> key
-
-        for (Map.Entry<Integer, String> mapEntry : registeredUsers.entrySet()) {
-            if (nickname.equals(mapEntry.getValue())) {
-                int userID = mapEntry.getKey();
-                return userID;
-            }
-        }
-        return -1;
+        Integer userId = userIdsByNickname.get(nickname);
+        return userId == null ? -1 : userId;
     }
 
     /**
@@ -163,14 +281,7 @@ public final class ServerModel implements ServerModelApi {
      *         exists, otherwise null
      */
     public String getNickname(int userId) {
-        // userID in the map -> value
-        for (Map.Entry<Integer, String> mapEntry : registeredUsers.entrySet()) {
-            if (userId == mapEntry.getKey()) {
-                String nickname = mapEntry.getValue();
-                return nickname;
-            }
-        }
-        return null;
+        return nicknamesById.get(userId);
     }
 
     /**
@@ -183,7 +294,7 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of registered user nicknames
      */
     public Collection<String> getRegisteredUsers() {
-        Collection<String> u = new TreeSet<>(registeredUsers.values());
+        Collection<String> u = new TreeSet<>(userIdsByNickname.keySet());
         return u;
 
     }
@@ -233,58 +344,233 @@ public final class ServerModel implements ServerModelApi {
         return createdChannels.get(channelName).getOwner();
     }
 
+    // ==========================================================================
+    // Queries without copies
+    // ==========================================================================
+
+    @Override
+    public boolean hasChannel(String channelName) {
+        return createdChannels.containsKey(channelName);
+    }
+
+    @Override
+    public boolean isRegistered(String nickname) {
+        return userIdsByNickname.containsKey(nickname);
+    }
+
+    @Override
+    public boolean isMember(String channelName, String nickname) {
+        Channel c = createdChannels.get(channelName);
+        return c != null && c.contains(getUserId(nickname));
+    }
+
+    @Override
+    public int memberCount(String channelName) {
+        Channel c = createdChannels.get(channelName);
+        return c == null ? 0 : c.size();
+    }
+
+    @Override
+    public Collection<String> registeredUsersView() {
+        return Collections.unmodifiableSet(userIdsByNickname.keySet());
+    }
+
+    @Override
+    public Collection<String> channelsView() {
+        return Collections.unmodifiableSet(createdChannels.keySet());
+    }
+
+    @Override
+    public Collection<String> usersInChannelView(String channelName) {
+        Channel c = createdChannels.get(channelName);
+        if (c == null) {
+            return Collections.emptySet();
+        }
+        return c.getUsersView();
+    }
+
+    // ==========================================================================
+    // Channel helpers
+    // ==========================================================================
+
     // get the channels user is in by nickname
     public Collection<Channel> getChannelsByUserNickname(String nickname) {
-        Set<Channel> c = new TreeSet<>();
-        for (Map.Entry<String, Channel> mapEntry : createdChannels.entrySet()) {
-            Collection<String> u = mapEntry.getValue().getUsersInChannel();
-            if (u.contains(nickname)) {
-                c.add(mapEntry.getValue());
+        Map<String, Channel> c = new TreeMap<>();
+        Set<Channel> memberships = getMemberships(nickname);
+        if (memberships != null) {
+            for (Channel channel : memberships) {
+                c.put(channel.getName(), channel);
             }
         }
-        return c;
+        return c.values();
     }
 
-// helper function: change nickname of user
-    public void changeNickname(int userId, String nickname) {
+    // helper: get the channels a user is in, or null if none
+    private Set<Channel> getMemberships(String nickname) {
+        int userId = getUserId(nickname);
+        return userId == -1 ? null : channelsByMember.get(userId);
+    }
 
-        String oldName = registeredUsers.get(userId);
-        registeredUsers.put(userId, nickname);
-        for (Channel c : createdChannels.values()) {
-            Set<String> u = c.getUsersInChannel();
-            if (u.contains(oldName)) {
-                c.remove(oldName);
-                c.add(nickname);
-                String owner = c.getOwner();
-                if (owner.equals(oldName)) {
-                    c.nameOwner(nickname);
-                }
+// helper function: change nickname of user. Channels refer to their members
+// and owner by user ID, so they only need to update their names.
+    public void changeNickname(int userId, String nickname) {
+        String oldNickname = nicknamesById.get(userId);
+        putUser(userId, nickname);
+        Set<Channel> memberships = channelsByMember.get(userId);
+        if (memberships != null && oldNickname != null) {
+            for (Channel c : memberships) {
+                c.rename(userId, oldNickname, nickname);
             }
         }
     }
 
+// helper function: enable the chunked NAMES extension for a user, so that
+// NAMES is sent to them in bounded chunks ending with ENDNAMES
+    public void enableNamesExtension(int userId) {
+        namesExtensionUsers.add(userId);
+    }
+
+// helper function: check if a user has enabled the chunked NAMES extension
+    public boolean hasNamesExtension(int userId) {
+        return namesExtensionUsers.contains(userId);
+    }
+
 //helper function: create a channel
     public void create(String nameC, String owner, Boolean prv) {
-        Channel c = new Channel(owner, prv);
-        // add new channel to the map of existing channels
-        createdChannels.put(nameC, c);
-        c.add(owner);
-
+        Channel c = new Channel(nameC, this, getUserId(owner), prv);
+        // add new channel to the map of existing channels, replacing any channel
+        // of the same name
+        Channel replaced = createdChannels.put(nameC, c);
+        if (replaced != null) {
+            unindexChannel(replaced);
+        }
+        join(c, owner);
     }
 //helper function: add users to a channel 
 
     public void join(Channel c, String name) {
-        c.add(name);
+        int userId = getUserId(name);
+        if (c.add(userId)) {
+            addCoMember(userId, c);
+        }
+        Set<Channel> memberships = channelsByMember.get(userId);
+        if (memberships == null) {
+            memberships = new HashSet<>();
+            channelsByMember.put(userId, memberships);
+        }
+        memberships.add(c);
     }
 
 // helper function: leave a channel
 
     public void leave(String nameC, String nickname) {
         // delete channel if the owner leaves
-        if (nickname.equals(createdChannels.get(nameC).getOwner())) {
-            createdChannels.remove(nameC);
+        Channel c = createdChannels.get(nameC);
+        int userId = getUserId(nickname);
+        if (userId == c.getOwnerId()) {
+            removeChannel(c);
         } else {
-            createdChannels.get(nameC).remove(nickname);
+            if (c.remove(userId)) {
+                removeCoMember(userId, c);
+            }
+            unindexMember(userId, c);
+        }
+    }
+
+    // helper: delete a channel, and drop it from its members' memberships
+    private void removeChannel(Channel c) {
+        if (createdChannels.get(c.getName()) == c) {
+            createdChannels.remove(c.getName());
+        }
+        unindexChannel(c);
+    }
+
+    private void unindexChannel(Channel c) {
+        int[] members = c.getMemberIds();
+        for (int i = 0; i < members.length; i++) {
+            unindexMember(members[i], c);
+            if (coMembers != null) {
+                for (int j = i + 1; j < members.length; j++) {
+                    countCoMembers(members[i], members[j], -1);
+                }
+            }
+        }
+    }
+
+    // helper: count a user who just joined a channel as sharing it with the
+    // channel's other members
+    private void addCoMember(int userId, Channel c) {
+        if (coMembers == null) {
+            return;
+        }
+        for (int member : c.getMemberIds()) {
+            if (member != userId) {
+                countCoMembers(userId, member, 1);
+            }
+        }
+    }
+
+    // helper: stop counting a user who just left a channel as sharing it with
+    // the channel's remaining members
+    private void removeCoMember(int userId, Channel c) {
+        if (coMembers == null) {
+            return;
+        }
+        for (int member : c.getMemberIds()) {
+            countCoMembers(userId, member, -1);
+        }
+    }
+
+    private void countCoMembers(int first, int second, int delta) {
+        countCoMember(first, second, delta);
+        countCoMember(second, first, delta);
+    }
+
+    private void countCoMember(int userId, int other, int delta) {
+        IntHashMap<int[]> neighbours = coMembers.get(userId);
+        if (neighbours == null) {
+            neighbours = new IntHashMap<>();
+            coMembers.put(userId, neighbours);
+        }
+        int[] shared = neighbours.get(other);
+        if (shared == null) {
+            shared = new int[1];
+            neighbours.put(other, shared);
+        }
+        shared[0] += delta;
+        if (shared[0] <= 0) {
+            neighbours.remove(other);
+            if (neighbours.isEmpty()) {
+                coMembers.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries in the co-member index: one for each ordered
+     * pair of users who share at least one channel. This measures the memory
+     * the index costs.
+     *
+     * @return the number of co-member entries, or -1 if they are not tracked
+     */
+    public long getCoMemberEntryCount() {
+        if (coMembers == null) {
+            return -1;
+        }
+        long count = 0;
+        for (int userId : coMembers.keys()) {
+            count += coMembers.get(userId).size();
+        }
+        return count;
+    }
+
+    private void unindexMember(int userId, Channel c) {
+        Set<Channel> memberships = channelsByMember.get(userId);
+        if (memberships != null) {
+            memberships.remove(c);
+            if (memberships.isEmpty()) {
+                channelsByMember.remove(userId);
+            }
         }
     }
 
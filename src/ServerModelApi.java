@@ -4,8 +4,6 @@ import java.util.Collection;
  * Defines a collection of methods that should be available in the
  * {@link ServerModel} class. These methods will be used by the
  * {@link ServerBackend}, and should therefore conform to this interface.
- *
- * You do not need to modify this file.
  */
 public interface ServerModelApi {
 
@@ -102,4 +100,72 @@ public interface ServerModelApi {
      *         null
      */
     String getOwner(String channelName);
+
+    // ==========================================================================
+    // Queries without copies
+    // ==========================================================================
+
+    /**
+     * Determines whether a channel with the given name exists, without copying
+     * the collection of channel names.
+     *
+     * @param channelName The channel name to look up
+     * @return true if the channel exists
+     */
+    boolean hasChannel(String channelName);
+
+    /**
+     * Determines whether a user with the given nickname is registered, without
+     * copying the collection of registered nicknames.
+     *
+     * @param nickname The nickname to look up
+     * @return true if a registered user has the nickname
+     */
+    boolean isRegistered(String nickname);
+
+    /**
+     * Determines whether the user with the given nickname is in the given
+     * channel. The result is false if either does not exist.
+     *
+     * @param channelName The channel to look in
+     * @param nickname    The nickname to look for
+     * @return true if the user is a member of the channel
+     */
+    boolean isMember(String channelName, String nickname);
+
+    /**
+     * Gets the number of users in the given channel, or zero if no channel with
+     * the given name exists.
+     *
+     * @param channelName The channel whose members to count
+     * @return The number of users in the channel
+     */
+    int memberCount(String channelName);
+
+    /**
+     * Gets an unmodifiable, live view of the nicknames of all registered users.
+     * Unlike {@link #getRegisteredUsers()} it is not copied, so it reflects
+     * later changes to the model and is not sorted.
+     *
+     * @return A view of the registered user nicknames
+     */
+    Collection<String> registeredUsersView();
+
+    /**
+     * Gets an unmodifiable, live view of the names of all channels. Unlike
+     * {@link #getChannels()} it is not copied, so it reflects later changes to
+     * the model.
+     *
+     * @return A view of the channel names
+     */
+    Collection<String> channelsView();
+
+    /**
+     * Gets an unmodifiable, live view of the nicknames of the users in the given
+     * channel. The view is empty if no channel with the given name exists.
+     *
+     * @param channelName The channel for which to get member nicknames
+     * @return A view of the user nicknames in the channel
+     */
+    Collection<String> usersInChannelView(String channelName);
 }
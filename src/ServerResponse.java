@@ -2,8 +2,6 @@
  * {@code ServerResponse} is an enumerated type that lists all possible response
  * codes a server can send to a client. Each response has both a string and
  * integer representation.
- *
- * You do not need to modify this file.
  */
 public enum ServerResponse {
 
@@ -56,6 +54,12 @@ public enum ServerResponse {
      */
     INVITE_TO_PUBLIC_CHANNEL(408),
 
+    /**
+     * Response by the server when a client asks with EXT to enable a protocol
+     * extension that the server does not support.
+     */
+    NO_SUCH_EXTENSION(409),
+
     /**
      * Response by the server when a client attempts to change his or her nick to a
      * nickname that is already in use by another user.
@@ -66,7 +70,13 @@ public enum ServerResponse {
      * Response by the server when a client attempts to create a channel whose name
      * is already used by another channel on the server.
      */
-    CHANNEL_ALREADY_EXISTS(501);
+    CHANNEL_ALREADY_EXISTS(501),
+
+    /**
+     * Response by the server when it is too far behind to take a message, which
+     * the client may send again later.
+     */
+    SERVER_BUSY(503);
 
     // The integer associated with this enum value
     private final int value;
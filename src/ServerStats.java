@@ -0,0 +1,201 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@code ServerStats} collects counters describing how the
+ * {@link ServerBackend} is coping with its load. Counters are updated by the
+ * backend's threads and can be read from any thread.
+ */
+final class ServerStats {
+
+    // Batch sizes are bucketed by powers of two: 1, 2-3, 4-7, ...
+    private static final int BATCH_BUCKETS = 17;
+
+    private final AtomicLongArray batchSizes;
+    private final AtomicLong tasks;
+    private final AtomicLong rejectedTasks;
+    private final AtomicLong shedRequests;
+    private final AtomicLong droppedResponses;
+    private final AtomicLong lagNanos;
+    private final AtomicLong maxLagNanos;
+
+    public ServerStats() {
+        batchSizes = new AtomicLongArray(BATCH_BUCKETS);
+        tasks = new AtomicLong();
+        rejectedTasks = new AtomicLong();
+        shedRequests = new AtomicLong();
+        droppedResponses = new AtomicLong();
+        lagNanos = new AtomicLong();
+        maxLagNanos = new AtomicLong();
+    }
+
+    // ==========================================================================
+    // Model thread batches
+    // ==========================================================================
+
+    /**
+     * Records that the model thread executed a batch of tasks.
+     *
+     * @param size The number of tasks in the batch
+     */
+    public void recordBatch(int size) {
+        if (size <= 0) {
+            return;
+        }
+        int bucket = Math.min(BATCH_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(size));
+        batchSizes.incrementAndGet(bucket);
+        tasks.addAndGet(size);
+    }
+
+    /**
+     * Gets the distribution of batch sizes. Element {@code i} of the result is
+     * the number of batches whose size was at least {@code 2^i} and less than
+     * {@code 2^(i+1)}; the last element also counts all larger batches.
+     *
+     * @return the batch size histogram
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[BATCH_BUCKETS];
+        for (int i = 0; i < BATCH_BUCKETS; i++) {
+            histogram[i] = batchSizes.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the number of tasks executed by the model thread.
+     *
+     * @return the total number of tasks
+     */
+    public long getTaskCount() {
+        return tasks.get();
+    }
+
+    /**
+     * Records that a request was discarded because the task queue was full.
+     */
+    public void recordRejectedTask() {
+        rejectedTasks.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of requests discarded because the task queue was full.
+     *
+     * @return the number of rejected tasks
+     */
+    public long getRejectedTaskCount() {
+        return rejectedTasks.get();
+    }
+
+    /**
+     * Records the responses a closed connection discarded under
+     * {@link OutboundQueue.Policy#DROP}.
+     *
+     * @param count The number of responses discarded
+     */
+    public void recordDroppedResponses(long count) {
+        droppedResponses.addAndGet(count);
+    }
+
+    /**
+     * Gets the number of responses that closed connections discarded because
+     * their clients were too slow to read them.
+     *
+     * @return the number of dropped responses
+     */
+    public long getDroppedResponseCount() {
+        return droppedResponses.get();
+    }
+
+    // ==========================================================================
+    // Admission control
+    // ==========================================================================
+
+    /**
+     * Records that a request was turned away with
+     * {@link ServerResponse#SERVER_BUSY} because the model was too far behind.
+     */
+    public void recordShedRequest() {
+        shedRequests.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of requests turned away because the model was too far
+     * behind.
+     *
+     * @return the number of shed requests
+     */
+    public long getShedRequestCount() {
+        return shedRequests.get();
+    }
+
+    /**
+     * Records how far behind the model threads are: how long the request that
+     * has waited longest among the ones they last took had been queued.
+     *
+     * @param nanos The lag in nanoseconds, or zero if they have caught up
+     */
+    public void recordLag(long nanos) {
+        lagNanos.set(nanos);
+        long max = maxLagNanos.get();
+        while (nanos > max && !maxLagNanos.compareAndSet(max, nanos)) {
+            max = maxLagNanos.get();
+        }
+    }
+
+    /**
+     * Gets how far behind the model threads currently are.
+     *
+     * @return the lag in nanoseconds, or zero if they have caught up
+     */
+    public long getLagNanos() {
+        return lagNanos.get();
+    }
+
+    /**
+     * Gets the furthest behind the model threads have been.
+     *
+     * @return the largest lag in nanoseconds
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos.get();
+    }
+
+    // ==========================================================================
+    // Overrides from Object
+    // ==========================================================================
+
+    @Override
+    public String toString() {
+        long[] histogram = getBatchSizeHistogram();
+        long batches = 0;
+        for (long count : histogram) {
+            batches += count;
+        }
+        long taskCount = getTaskCount();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("tasks=%d rejected=%d shed=%d dropped=%d lag=%.2fms (max %.2fms) batches=%d"
+                + " mean batch=%.2f", taskCount, getRejectedTaskCount(), getShedRequestCount(),
+                getDroppedResponseCount(), getLagNanos() / 1e6,
+                getMaxLagNanos() / 1e6, batches, batches == 0 ? 0.0 : (double) taskCount / batches));
+        text.append(" batch sizes={");
+        String separator = "";
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            int low = 1 << i;
+            String range;
+            if (i == histogram.length - 1) {
+                range = low + "+";
+            } else if (i == 0) {
+                range = "1";
+            } else {
+                range = low + "-" + ((low << 1) - 1);
+            }
+            text.append(separator).append(range).append(": ").append(histogram[i]);
+            separator = ", ";
+        }
+        return text.append('}').toString();
+    }
+}
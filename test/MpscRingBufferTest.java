@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class MpscRingBufferTest {
+    private MpscRingBuffer<String> queue;
+
+    @BeforeEach
+    public void setUp() {
+        queue = new MpscRingBuffer<>(2, MpscRingBuffer.WaitStrategy.PARK);
+    }
+
+    // Forcing elements into a full ring keeps them in order behind it, and
+    // ordinary offers fail until they have been taken.
+    @Test
+    public void testForceWhenFull() {
+        assertTrue(queue.offer("a"));
+        queue.force("b");
+        assertFalse(queue.offer("c"), "the ring is full");
+        queue.force("c");
+        queue.force("d");
+        assertFalse(queue.offer("e"), "forced elements are waiting");
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.remainingCapacity());
+
+        assertEquals("a", queue.poll());
+        // the ring has room again, but "c" and "d" must come out first
+        assertFalse(queue.offer("e"), "forced elements are still waiting");
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.peek());
+        assertEquals("c", queue.poll());
+        assertEquals("d", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.offer("e"));
+        assertEquals("e", queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    // The queue can be iterated from oldest to newest, including forced
+    // elements, so Collection methods built on the iterator work.
+    @Test
+    public void testIterator() {
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        queue.force("c");
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(queue));
+        assertTrue(queue.contains("c"));
+        assertFalse(queue.contains("d"));
+
+        // an iterator still returns the element it has reached when that is
+        // taken, but skips the ones taken before it gets to them
+        Iterator<String> elements = queue.iterator();
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertEquals("a", elements.next());
+        assertEquals("c", elements.next());
+        assertFalse(elements.hasNext());
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.iterator().hasNext());
+    }
+}
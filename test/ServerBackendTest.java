@@ -0,0 +1,264 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * These tests run a {@link ServerBackend} on a local port and talk to it over
+ * sockets. Every read times out, so a server that stops responding fails the
+ * test instead of hanging it.
+ */
+public class ServerBackendTest {
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    // idle clients connected by the virtual thread soak test
+    private static final int SOAK_CLIENTS = 500;
+
+    private ServerBackend backend;
+    private Thread serverThread;
+    private List<Socket> sockets;
+
+    @BeforeEach
+    public void setUp() {
+        backend = null;
+        serverThread = null;
+        sockets = new ArrayList<>();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (backend != null) {
+            backend.stop();
+            serverThread.join(READ_TIMEOUT_MILLIS);
+        }
+    }
+
+    // helper: start a server with the given settings on a free port
+    private ServerConfig start(ServerConfig config) throws InterruptedException {
+        config.setPort(20000 + new Random().nextInt(20000));
+        config.setLogLevel(ServerLog.Level.WARN);
+        backend = new ServerBackend(new ServerModel(), config);
+        serverThread = new Thread(backend, "Server");
+        serverThread.start();
+        return config;
+    }
+
+    // helper: connect a client, and read the server's greeting
+    private BufferedReader connect(ServerConfig config) throws Exception {
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", config.getPort());
+            } catch (ConnectException cx) {
+                // the server is not listening yet
+                if (attempt == 100) {
+                    throw cx;
+                }
+                Thread.sleep(50);
+            }
+        }
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        sockets.add(socket);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        assertTrue(in.readLine().endsWith(" CONNECT"), "greeting");
+        return in;
+    }
+
+    // helper: send lines from the client whose reader was last connected
+    private void send(String... lines) throws IOException {
+        OutputStream out = sockets.get(sockets.size() - 1).getOutputStream();
+        PrintWriter writer = new PrintWriter(out);
+        for (String line : lines) {
+            writer.print(line + "\n");
+        }
+        writer.flush();
+    }
+
+    // helper: a message long enough that a few of them pass the high watermark
+    private static String longMessage(int length) {
+        StringBuilder message = new StringBuilder(length);
+        while (message.length() < length) {
+            message.append("abcdefghij");
+        }
+        return message.substring(0, length);
+    }
+
+    // helper: the heap in use once garbage has been collected, as well as it can
+    // be measured
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // helper: check that one command's responses larger than the high watermark
+    // all arrive under a policy
+    private void checkSendOverHighWatermark(ServerConfig.Engine engine, OutboundQueue.Policy policy)
+            throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setSlowConsumerPolicy(policy);
+        config.setOutboundWatermarks(16, 0);
+        start(config);
+
+        BufferedReader owner = connect(config);
+        send("CREATE java 0");
+        assertEquals(":User0 CREATE java 0", owner.readLine());
+
+        // JOIN is sent back with NAMES in a single send, together well over 16
+        // bytes; the joiner reads both without being disconnected
+        BufferedReader joiner = connect(config);
+        send("JOIN java");
+        assertEquals(":User1 JOIN java", joiner.readLine());
+        assertEquals(":User1 NAMES java :@User0 User1", joiner.readLine());
+        assertEquals(":User1 JOIN java", owner.readLine());
+    }
+
+    // helper: check that messages relayed in model batches well over the high
+    // watermark all arrive
+    private void checkBatchesOverHighWatermark(ServerConfig.Engine engine) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setSlowConsumerPolicy(OutboundQueue.Policy.BLOCK);
+        config.setModelBatchSize(64);
+        start(config);
+
+        BufferedReader in = connect(config);
+        send("CREATE java 0");
+        assertEquals(":User0 CREATE java 0", in.readLine());
+        String message = longMessage(65000);
+        String[] lines = new String[40];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "MESG java :" + i + message;
+        }
+        send(lines);
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(":User0 MESG java :" + i + message, in.readLine(), "message " + i);
+        }
+    }
+
+    // A send larger than the high watermark is queued whole, instead of waiting
+    // for itself to drain, with both engines.
+    @Test
+    public void testSendOverHighWatermarkBlocks() throws Exception {
+        checkSendOverHighWatermark(ServerConfig.Engine.BLOCKING, OutboundQueue.Policy.BLOCK);
+    }
+
+    // A client reading normally is not disconnected for one large send.
+    @Test
+    public void testSendOverHighWatermarkDoesNotDisconnect() throws Exception {
+        checkSendOverHighWatermark(ServerConfig.Engine.SELECTOR, OutboundQueue.Policy.DISCONNECT);
+    }
+
+    // The selector engine drains a connection while the model waits on it.
+    @Test
+    public void testSendOverHighWatermarkSelector() throws Exception {
+        checkSendOverHighWatermark(ServerConfig.Engine.SELECTOR, OutboundQueue.Policy.BLOCK);
+    }
+
+    // The virtual thread engine serves clients like the blocking one, falling
+    // back to platform threads on a JVM without virtual threads.
+    @Test
+    public void testVirtualEngine() throws Exception {
+        checkSendOverHighWatermark(ServerConfig.Engine.VIRTUAL, OutboundQueue.Policy.BLOCK);
+    }
+
+    // Soak: many idle clients cost the virtual thread engine a little heap each,
+    // but no platform thread, and the server still answers. Needs Java 21.
+    @Test
+    public void testVirtualEngineIdleClients() throws Exception {
+        Assumptions.assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21 or later");
+        ServerConfig config = new ServerConfig();
+        config.setEngine(ServerConfig.Engine.VIRTUAL);
+        start(config);
+        BufferedReader owner = connect(config);
+        send("CREATE soak 0");
+        assertEquals(":User0 CREATE soak 0", owner.readLine());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap();
+        for (int i = 0; i < SOAK_CLIENTS; i++) {
+            connect(config);
+        }
+        long heapPerClient = (usedHeap() - heapBefore) / SOAK_CLIENTS;
+        int newThreads = threads.getThreadCount() - threadsBefore;
+        System.out.printf("%d idle clients: %d new platform threads, %d bytes of heap each (client included)%n",
+                SOAK_CLIENTS, newThreads, heapPerClient);
+        assertTrue(newThreads < SOAK_CLIENTS / 10, "platform threads per client: " + newThreads);
+        // the client's own reader buffers are most of this
+        assertTrue(heapPerClient < 128 * 1024, "heap per client: " + heapPerClient);
+
+        BufferedReader joiner = connect(config);
+        send("JOIN soak");
+        String join = ":User" + (SOAK_CLIENTS + 1) + " JOIN soak";
+        assertEquals(join, joiner.readLine());
+        assertEquals(join, owner.readLine());
+    }
+
+    // Batched responses totalling more than the high watermark for one client
+    // are all delivered.
+    @Test
+    public void testBatchesOverHighWatermark() throws Exception {
+        checkBatchesOverHighWatermark(ServerConfig.Engine.BLOCKING);
+    }
+
+    // The same, with the selector engine.
+    @Test
+    public void testBatchesOverHighWatermarkSelector() throws Exception {
+        checkBatchesOverHighWatermark(ServerConfig.Engine.SELECTOR);
+    }
+
+    // A batch runs on the one shard holding all its channels, and across shards
+    // only when its channels are in several.
+    @Test
+    public void testBatchShards() throws Exception {
+        BatchCommand oneShard = new BatchCommand(1, "User1", "JOIN", List.of("a", "d"), null);
+        assertEquals("a", oneShard.getShardChannel(3), "a and d share a shard");
+        BatchCommand twoShards = new BatchCommand(1, "User1", "MESG", List.of("a", "b"), "x");
+        assertNull(twoShards.getShardChannel(3), "a and b do not");
+        assertEquals("a", twoShards.getShardChannel(1), "one shard holds everything");
+
+        ServerConfig config = new ServerConfig();
+        config.setModelShards(3);
+        start(config);
+        BufferedReader owner = connect(config);
+        // shards run in parallel, so only one shard's responses come in order
+        for (String channel : new String[] { "a", "b", "d" }) {
+            send("CREATE " + channel + " 0");
+            assertEquals(":User0 CREATE " + channel + " 0", owner.readLine());
+        }
+
+        BufferedReader joiner = connect(config);
+        send("JOIN a,d", "MESG a,d :hi", "MESG a,b :x");
+        assertEquals(":User1 JOIN a", joiner.readLine());
+        assertEquals(":User1 NAMES a :@User0 User1", joiner.readLine());
+        assertEquals(":User1 JOIN d", joiner.readLine());
+        assertEquals(":User1 NAMES d :@User0 User1", joiner.readLine());
+        assertEquals(":User1 MESG a :hi", joiner.readLine());
+        assertEquals(":User1 ERROR 404 b", joiner.readLine());
+        assertEquals(":User1 MESG a :x", joiner.readLine());
+        assertEquals(":User1 JOIN a", owner.readLine());
+        assertEquals(":User1 JOIN d", owner.readLine());
+        assertEquals(":User1 MESG a :hi", owner.readLine());
+        assertEquals(":User1 MESG a :x", owner.readLine());
+    }
+}
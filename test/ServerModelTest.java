@@ -1,8 +1,11 @@
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class ServerModelTest {
     private ServerModel model;
@@ -183,4 +186,271 @@ public class ServerModelTest {
         assertFalse(otherthan4.contains(model.getNickname(4)), "User 4");
 
     }
+
+// Test that user IDs and nicknames stay paired through nickname changes and
+// deregistration, with enough users to fill many slots of the index
+    @Test
+    public void testUserIndex() {
+        for (int id = 0; id < 1000; id++) {
+            model.registerUser(id);
+        }
+        model.changeNickname(500, "Renamed");
+        for (int id = 1; id < 1000; id += 2) {
+            model.deregisterUser(id);
+        }
+
+        assertEquals(500, model.getRegisteredUsers().size(), "Number of registered users");
+        assertEquals(500, model.getUserId("Renamed"), "Renamed user");
+        assertEquals(-1, model.getUserId("User500"), "Old nickname");
+        assertNull(model.getNickname(501), "Deregistered user");
+        for (int id = 0; id < 1000; id += 2) {
+            assertEquals(id, model.getUserId(model.getNickname(id)), "User " + id);
+        }
+
+        // The lowest free default nickname is reused
+        model.registerUser(1);
+        assertEquals("User1", model.getNickname(1), "Reused nickname");
+    }
+
+// Test that the channels a user is in follow them through nickname changes,
+// and that deregistering an owner removes their channel from everyone
+    @Test
+    public void testChannelMemberships() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.create("java", "User0", false);
+        model.create("cis", "User1", false);
+        model.join(model.getChannelByChannelName("java"), "User1");
+        model.changeNickname(1, "Duke");
+
+        assertEquals(2, model.getChannelsByUserNickname("Duke").size(), "Channels of renamed user");
+        assertTrue(model.getChannelsByUserNickname("User1").isEmpty(), "Channels of old nickname");
+        assertEquals("Duke", model.getOwner("cis"), "Renamed owner");
+
+        model.deregisterUser(0);
+        assertFalse(model.getChannels().contains("java"), "Owned channel removed");
+        assertEquals(1, model.getChannelsByUserNickname("Duke").size(), "Channels after owner left");
+        assertTrue(model.getOtherUsers("Duke").isEmpty(), "No other users");
+    }
+
+// Test that a broadcast compares and prints the same after its recipients
+// change nickname or disconnect
+    @Test
+    public void testBroadcastStable() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.create("java", "User0", false);
+        model.join(model.getChannelByChannelName("java"), "User1");
+        Command mesg = new MessageCommand(0, "User0", "java", "hey");
+        Broadcast actual = mesg.updateServerModel(model);
+        String printed = actual.toString();
+
+        model.changeNickname(1, "Duke");
+        model.deregisterUser(0);
+        Broadcast expected = Broadcast.okay(mesg, Arrays.asList("User0", "User1"));
+        assertEquals(expected, actual, "Broadcast");
+        assertEquals(printed, actual.toString(), "Printed");
+    }
+
+// Test that default nicknames fill the lowest free suffix, skipping ones
+// claimed with NICK and reusing ones given up with NICK
+    @Test
+    public void testDefaultNicknames() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.changeNickname(1, "Bob");
+        model.changeNickname(0, "User2");
+
+        model.registerUser(2);
+        assertEquals("User0", model.getNickname(2), "Freed by NICK");
+        model.registerUser(3);
+        assertEquals("User1", model.getNickname(3), "Freed by NICK");
+        model.registerUser(4);
+        assertEquals("User3", model.getNickname(4), "Claimed by NICK");
+
+        model.changeNickname(1, "User02");
+        model.registerUser(5);
+        assertEquals("User4", model.getNickname(5), "Not a default nickname");
+    }
+
+// Test the membership predicates
+    @Test
+    public void testMembershipQueries() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.create("java", "User0", false);
+
+        assertTrue(model.hasChannel("java"), "Channel exists");
+        assertTrue(model.isRegistered("User1"), "User1 registered");
+        assertFalse(model.isMember("java", "User1"), "User1 not yet in channel");
+        model.join(model.getChannelByChannelName("java"), "User1");
+        assertTrue(model.isMember("java", "User1"), "User1 in channel");
+        assertEquals(2, model.memberCount("java"), "Number of members");
+        assertEquals(0, model.memberCount("nope"), "Missing channel");
+
+        model.changeNickname(1, "Duke");
+        assertTrue(model.isRegistered("Duke"), "Duke registered");
+        assertFalse(model.isRegistered("User1"), "User1 renamed");
+        assertTrue(model.isMember("java", "Duke"), "Duke in channel");
+    }
+
+// Test that the views follow the model and cannot change it
+    @Test
+    public void testLiveViews() {
+        model.registerUser(0);
+        model.registerUser(1);
+        Collection<String> users = model.registeredUsersView();
+        Collection<String> channels = model.channelsView();
+        model.create("java", "User0", false);
+        Collection<String> members = model.usersInChannelView("java");
+        assertTrue(model.usersInChannelView("nope").isEmpty(), "Missing channel");
+
+        model.join(model.getChannelByChannelName("java"), "User1");
+        model.changeNickname(1, "Duke");
+        assertTrue(users.contains("Duke"), "Users view renamed");
+        assertEquals(2, users.size(), "Users view size");
+        assertTrue(channels.contains("java"), "Channels view");
+        assertTrue(members.contains("Duke"), "Members view renamed");
+        assertEquals(2, members.size(), "Members view size");
+        try {
+            members.add("User2");
+            fail("Members view modified");
+        } catch (UnsupportedOperationException expected) {
+            // the views are read-only
+        }
+    }
+
+// Test that the co-member index finds the same users as visiting channels,
+// through joins, leaves, deleted channels and disconnects
+    @Test
+    public void testCoMemberIndex() {
+        ServerModel indexed = new ServerModel(true);
+        for (ServerModel m : new ServerModel[] { model, indexed }) {
+            for (int id = 0; id < 5; id++) {
+                m.registerUser(id);
+            }
+            m.create("a", "User0", false);
+            m.create("b", "User1", false);
+            m.join(m.getChannelByChannelName("a"), "User1");
+            m.join(m.getChannelByChannelName("a"), "User2");
+            m.join(m.getChannelByChannelName("b"), "User2");
+            m.join(m.getChannelByChannelName("b"), "User2");
+            m.join(m.getChannelByChannelName("b"), "User3");
+            m.leave("a", "User2");
+        }
+        for (int id = 0; id < 5; id++) {
+            assertEquals(model.getOtherUsers("User" + id), indexed.getOtherUsers("User" + id), "User" + id);
+        }
+        assertEquals(8, indexed.getCoMemberEntryCount(), "Pairs sharing a channel");
+
+        model.deregisterUser(1);
+        indexed.deregisterUser(1);
+        for (int id : new int[] { 0, 2, 3, 4 }) {
+            assertEquals(model.getOtherUsers("User" + id), indexed.getOtherUsers("User" + id), "User" + id);
+        }
+        assertEquals(0, indexed.getCoMemberEntryCount(), "No channels left");
+        assertEquals(-1, model.getCoMemberEntryCount(), "Not tracked");
+    }
+
+// Test that a channel keeps the right members as it grows large and shrinks
+// back down
+    @Test
+    public void testLargeChannel() {
+        for (int id = 0; id < 40; id++) {
+            model.registerUser(id);
+        }
+        model.create("big", "User0", false);
+        Channel chan = model.getChannelByChannelName("big");
+        for (int id = 1; id < 40; id++) {
+            model.join(chan, "User" + id);
+        }
+        assertEquals(40, model.memberCount("big"), "Number of members when large");
+        for (int id = 1; id < 36; id++) {
+            model.leave("big", "User" + id);
+        }
+        assertEquals(5, model.memberCount("big"), "Number of members when small again");
+        assertTrue(model.isMember("big", "User37"), "Remaining member");
+        assertFalse(model.isMember("big", "User20"), "Member who left");
+        model.join(chan, "User20");
+        assertTrue(model.getUsersInChannel("big").contains("User20"), "Member who rejoined");
+    }
+
+// Test that a channel's NAMES payload follows joins, nickname changes, leaves
+// and disconnects
+    @Test
+    public void testNamesPayload() {
+        for (int id = 0; id < 4; id++) {
+            model.registerUser(id);
+        }
+        model.create("java", "User2", false);
+        Channel chan = model.getChannelByChannelName("java");
+        model.join(chan, "User0");
+        assertEquals("User0 @User2", chan.getNamesPayload(), "Sorted, owner marked");
+        model.join(chan, "User3");
+        model.changeNickname(0, "Zed");
+        assertEquals("@User2 User3 Zed", chan.getNamesPayload(), "After join and rename");
+        model.changeNickname(2, "Anh");
+        model.leave("java", "User3");
+        assertEquals("@Anh Zed", chan.getNamesPayload(), "After owner rename and leave");
+        model.join(chan, "User1");
+        model.deregisterUser(0);
+        assertEquals("@Anh User1", chan.getNamesPayload(), "After disconnect");
+    }
+
+// Test that a channel's version and changes since a version follow joins,
+// nickname changes and leaves once its names are kept
+    @Test
+    public void testNameChanges() {
+        for (int id = 0; id < 4; id++) {
+            model.registerUser(id);
+        }
+        model.create("java", "User0", false);
+        Channel chan = model.getChannelByChannelName("java");
+        assertNull(chan.getNameChangesSince(0), "Changes not kept before NAMES");
+        assertEquals("@User0", chan.getNamesPayload(), "Names");
+        long version = chan.getVersion();
+        assertEquals(Collections.emptyList(), chan.getNameChangesSince(version), "No changes yet");
+
+        model.join(chan, "User1");
+        model.join(chan, "User2");
+        model.changeNickname(1, "Duke");
+        model.leave("java", "User2");
+        assertEquals(Arrays.asList("-User1", "+Duke", "-User2"), chan.getNameChangesSince(version),
+                "Latest change to each name");
+        assertTrue(chan.getVersion() > version, "Version goes up");
+        assertNull(chan.getNameChangesSince(chan.getVersion() + 1), "Unknown version");
+    }
+
+// Test that JOIN and MESG on several channels act on each channel, report
+// errors per channel, and relay a message to each user only once
+    @Test
+    public void testBatchCommands() {
+        for (int id = 0; id < 3; id++) {
+            model.registerUser(id);
+        }
+        model.create("java", "User0", false);
+        model.create("ocaml", "User0", false);
+        model.create("secret", "User2", true);
+
+        Command join = CommandParser.parse(1, "User1", "JOIN java,nope,ocaml,secret");
+        Map<Integer, List<String>> joined = join.updateServerModel(model).getResponses(model);
+        assertTrue(model.isMember("java", "User1"), "Joined first channel");
+        assertTrue(model.isMember("ocaml", "User1"), "Joined second channel");
+        assertTrue(joined.get(1).contains(":User1 ERROR 402 nope"), "Error for missing channel");
+        assertTrue(joined.get(1).contains(":User1 ERROR 407 secret"), "Error for private channel");
+
+        model.join(model.getChannelByChannelName("ocaml"), "User2");
+        Command mesg = CommandParser.parse(1, "User1", "MESG java,ocaml,secret :hello");
+        Map<Integer, List<String>> sent = mesg.updateServerModel(model).getResponses(model);
+        assertEquals(Collections.singletonList(":User1 MESG java :hello"), sent.get(0),
+                "Relayed once, to the first channel reached");
+        assertEquals(Collections.singletonList(":User1 MESG ocaml :hello"), sent.get(2),
+                "Relayed to a channel the recipient is in");
+        assertEquals(Arrays.asList(":User1 ERROR 404 secret", ":User1 MESG java :hello"), sent.get(1),
+                "Sender's responses");
+
+        Command other = CommandParser.parse(1, "User1", "MESG java :hi");
+        assertFalse(other.updateServerModel(model).getResponses(model).containsKey(2),
+                "Not relayed to other channels");
+    }
 }